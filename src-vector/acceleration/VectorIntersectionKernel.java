@@ -0,0 +1,163 @@
+package acceleration;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Tests one ray against as many lines per instruction as the CPU's vectors hold. A first pass writes every line's
+ * hit distance (or infinity) into a scratch array, a masked min-reduction finds the closest one, and a scalar scan
+ * picks the lowest index at that distance so ties break the same way as {@link RayQuery#test}.
+ * <p>
+ * The single precision variant doubles the lane count. Lines whose endpoints lie almost on the ray, that the ray
+ * almost grazes, or whose distance lands within rounding of the closest one are retested in double precision.
+ */
+public class VectorIntersectionKernel extends IntersectionKernel {
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    // Relative size below which a single precision difference is too close to rounding to decide anything.
+    private static final float TOLERANCE = 1e-4f;
+    // How far past the closest single precision hit a line can still be the closest in double precision.
+    private static final float MARGIN = 1e-2f;
+    // Marks a line the single precision pass could not decide.
+    private static final float UNDECIDED = -1;
+    private final boolean singlePrecision;
+
+    public VectorIntersectionKernel( boolean singlePrecision ) {
+        this.singlePrecision = singlePrecision;
+        // Fails here, and so in IntersectionKernel.load, when the module is missing.
+        DoubleVector.zero( DOUBLES );
+    }
+
+    @Override
+    public void closestHit( PackedLines lines, RayQuery query ) {
+        if ( singlePrecision )
+            closestFloat( lines, query );
+        else
+            closestDouble( lines, query );
+    }
+
+    private static void closestDouble( PackedLines lines, RayQuery query ) {
+        int n = lines.size;
+        double[] hits = query.doubleScratch( n );
+        double x = query.x, y = query.y, dx = query.dx, dy = query.dy;
+        double rA = query.rA, rB = query.rB, rC = query.rC;
+        DoubleVector infinity = DoubleVector.broadcast( DOUBLES, Double.POSITIVE_INFINITY );
+        int i = 0;
+        for ( int bound = DOUBLES.loopBound( n ); i < bound; i += DOUBLES.length() ) {
+            DoubleVector a = DoubleVector.fromArray( DOUBLES, lines.a, i );
+            DoubleVector b = DoubleVector.fromArray( DOUBLES, lines.b, i );
+            DoubleVector p1 = DoubleVector.fromArray( DOUBLES, lines.x1, i ).mul( rA ).add( DoubleVector.fromArray( DOUBLES, lines.y1, i ).mul( rB ) );
+            DoubleVector p2 = DoubleVector.fromArray( DOUBLES, lines.x2, i ).mul( rA ).add( DoubleVector.fromArray( DOUBLES, lines.y2, i ).mul( rB ) );
+            VectorMask<Double> above1 = p1.compare( VectorOperators.GT, rC );
+            VectorMask<Double> above2 = p2.compare( VectorOperators.GT, rC );
+            VectorMask<Double> on1 = p1.compare( VectorOperators.EQ, rC );
+            VectorMask<Double> on2 = p2.compare( VectorOperators.EQ, rC );
+            VectorMask<Double> crosses = above1.andNot( above2 ).or( above2.andNot( above1 ) ).or( on1.andNot( on2 ) ).or( on2.andNot( on1 ) );
+            DoubleVector t = DoubleVector.fromArray( DOUBLES, lines.c, i ).sub( a.mul( x ) ).sub( b.mul( y ) ).div( a.mul( dx ).add( b.mul( dy ) ) );
+            infinity.blend( t, crosses.and( t.compare( VectorOperators.GE, 0 ) ) ).intoArray( hits, i );
+        }
+        for ( ; i < n; i++ ) {
+            double p1 = rA * lines.x1[i] + rB * lines.y1[i];
+            double p2 = rA * lines.x2[i] + rB * lines.y2[i];
+            double t = (lines.c[i] - lines.a[i] * x - lines.b[i] * y) / (lines.a[i] * dx + lines.b[i] * dy);
+            boolean crosses = (p1 > rC) != (p2 > rC) || (p1 == rC) != (p2 == rC);
+            hits[i] = (crosses && t >= 0) ? t : Double.POSITIVE_INFINITY;
+        }
+        int ignore = query.getIgnore();
+        if ( ignore >= 0 && ignore < n )
+            hits[ignore] = Double.POSITIVE_INFINITY;
+
+        DoubleVector best = infinity;
+        i = 0;
+        for ( int bound = DOUBLES.loopBound( n ); i < bound; i += DOUBLES.length() ) {
+            best = best.min( DoubleVector.fromArray( DOUBLES, hits, i ) );
+        }
+        double closest = best.reduceLanes( VectorOperators.MIN );
+        for ( ; i < n; i++ ) {
+            closest = Math.min( closest, hits[i] );
+        }
+        if ( closest == Double.POSITIVE_INFINITY )
+            return;
+        i = 0;
+        for ( int bound = DOUBLES.loopBound( n ); i < bound; i += DOUBLES.length() ) {
+            VectorMask<Double> found = DoubleVector.fromArray( DOUBLES, hits, i ).compare( VectorOperators.EQ, closest );
+            if ( found.anyTrue() ) {
+                query.offer( closest, i + found.firstTrue() );
+                return;
+            }
+        }
+        for ( ; i < n; i++ ) {
+            if ( hits[i] == closest ) {
+                query.offer( closest, i );
+                return;
+            }
+        }
+    }
+
+    private static void closestFloat( PackedLines lines, RayQuery query ) {
+        int n = lines.size;
+        float[] hits = query.floatScratch( n );
+        float x = (float) query.x, y = (float) query.y, dx = (float) query.dx, dy = (float) query.dy;
+        float rA = (float) query.rA, rB = (float) query.rB, rC = (float) query.rC;
+        // How large the terms cancelling into each difference can get anywhere in the scene, and so how far off they can be.
+        float tolerance = TOLERANCE * (Math.abs( rA ) * lines.floatMaxAbsX + Math.abs( rB ) * lines.floatMaxAbsY + Math.abs( rC ));
+        // The same for C - Ax - By, relative to each line's |A| + |B|.
+        float numTolerance = TOLERANCE * (lines.floatMaxAbsX + lines.floatMaxAbsY + Math.abs( x ) + Math.abs( y ));
+        float denTolerance = TOLERANCE * (Math.abs( dx ) + Math.abs( dy ));
+        FloatVector infinity = FloatVector.broadcast( FLOATS, Float.POSITIVE_INFINITY );
+        FloatVector undecided = FloatVector.broadcast( FLOATS, UNDECIDED );
+        int i = 0;
+        for ( int bound = FLOATS.loopBound( n ); i < bound; i += FLOATS.length() ) {
+            FloatVector x1 = FloatVector.fromArray( FLOATS, lines.floatX1, i );
+            FloatVector y1 = FloatVector.fromArray( FLOATS, lines.floatY1, i );
+            FloatVector x2 = FloatVector.fromArray( FLOATS, lines.floatX2, i );
+            FloatVector y2 = FloatVector.fromArray( FLOATS, lines.floatY2, i );
+            FloatVector a = FloatVector.fromArray( FLOATS, lines.floatA, i );
+            FloatVector b = FloatVector.fromArray( FLOATS, lines.floatB, i );
+            FloatVector s1 = x1.mul( rA ).add( y1.mul( rB ) ).sub( rC );
+            FloatVector s2 = x2.mul( rA ).add( y2.mul( rB ) ).sub( rC );
+            FloatVector num = FloatVector.fromArray( FLOATS, lines.floatC, i ).sub( a.mul( x ) ).sub( b.mul( y ) );
+            FloatVector den = a.mul( dx ).add( b.mul( dy ) );
+            FloatVector t = num.div( den );
+            FloatVector norm = FloatVector.fromArray( FLOATS, lines.floatNorm, i );
+            VectorMask<Float> unsure = s1.abs().compare( VectorOperators.LE, tolerance )
+                    .or( s2.abs().compare( VectorOperators.LE, tolerance ) )
+                    .or( num.abs().compare( VectorOperators.LE, norm.mul( numTolerance ) ) )
+                    .or( den.abs().compare( VectorOperators.LE, norm.mul( denTolerance ) ) );
+            VectorMask<Float> hit = s1.mul( s2 ).compare( VectorOperators.LT, 0 ).and( t.compare( VectorOperators.GE, 0 ) );
+            infinity.blend( t, hit ).blend( undecided, unsure ).intoArray( hits, i );
+        }
+        // The tail is decided exactly right away.
+        for ( ; i < n; i++ ) {
+            query.test( lines, i );
+            hits[i] = Float.POSITIVE_INFINITY;
+        }
+        int ignore = query.getIgnore();
+        if ( ignore >= 0 && ignore < n )
+            hits[ignore] = Float.POSITIVE_INFINITY;
+
+        FloatVector best = infinity;
+        FloatVector zero = FloatVector.zero( FLOATS );
+        i = 0;
+        for ( int bound = FLOATS.loopBound( n ); i < bound; i += FLOATS.length() ) {
+            FloatVector h = FloatVector.fromArray( FLOATS, hits, i );
+            best = best.min( h.blend( infinity, h.compare( VectorOperators.LT, zero ) ) );
+        }
+        float closest = Math.min( best.reduceLanes( VectorOperators.MIN ), (float) query.getT() );
+        // Anything that could still be the closest hit in double precision gets the exact test. Lanes left at infinity
+        // are certain misses, so with no hit at all only the undecided ones are tested, and the tail already was.
+        float bound = (closest == Float.POSITIVE_INFINITY) ? Float.MAX_VALUE : closest + closest * MARGIN;
+        i = 0;
+        for ( int end = FLOATS.loopBound( n ); i < end; i += FLOATS.length() ) {
+            if ( FloatVector.fromArray( FLOATS, hits, i ).compare( VectorOperators.LE, bound ).anyTrue() ) {
+                for ( int k = i; k < i + FLOATS.length(); k++ ) {
+                    if ( hits[k] <= bound )
+                        query.test( lines, k );
+                }
+            }
+        }
+    }
+}
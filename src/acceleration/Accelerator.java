@@ -0,0 +1,21 @@
+package acceleration;
+
+/**
+ * A spatial index over the {@link entities.Line}s of a {@link main.PhotonWorld} that answers closest-hit queries.
+ * Implementations are immutable once built and are queried concurrently by every emitter thread.
+ */
+public interface Accelerator {
+    /**
+     * Finds the closest line hit by the ray described by <code>query</code> and stores it in the query.
+     *
+     * @param query The ray to trace. Its result fields are updated in place.
+     */
+    void closestHit( RayQuery query );
+
+    /**
+     * Finds the closest line hit by every ray of <code>packet</code>. Gives the same hits as tracing each ray alone.
+     *
+     * @param packet The rays to trace. Their result fields are updated in place.
+     */
+    void closestHitPacket( RayPacket packet );
+}
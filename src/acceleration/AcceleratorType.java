@@ -0,0 +1,79 @@
+package acceleration;
+
+/**
+ * The kinds of {@link Accelerator} a {@link main.PhotonWorld} can trace against. {@link #AUTO} picks one of the others
+ * from the statistics of the scene every time its geometry changes.
+ */
+public enum AcceleratorType {
+    AUTO, BRUTE_FORCE, UNIFORM_GRID, BVH;
+
+    // Below this many lines building anything costs more than it saves, more so when a vector kernel tests them.
+    private static final int BRUTE_FORCE_LIMIT = 32;
+    private static final int VECTOR_BRUTE_FORCE_LIMIT = 256;
+    // Grids only pay off when there are enough similar sized lines to fill most of their cells.
+    private static final int GRID_MIN_LINES = 256;
+    private static final double GRID_MAX_LENGTH_SPREAD = 1;
+    private static final double GRID_MIN_FILL = 0.05;
+
+    /**
+     * Builds this kind of accelerator over the given lines.
+     *
+     * @param lines  The lines of the scene.
+     * @param kernel The vector kernel for brute force tests, or null if only the scalar loop is available.
+     * @return The accelerator.
+     */
+    public Accelerator build( PackedLines lines, IntersectionKernel kernel ) {
+        switch ( this ) {
+            case BRUTE_FORCE:
+                return new BruteForce( lines, kernel );
+            case UNIFORM_GRID:
+                return new UniformGrid( lines );
+            case BVH:
+                return new acceleration.BVH( lines );
+            default:
+                return choose( lines, kernel != null ).build( lines, kernel );
+        }
+    }
+
+    /**
+     * Chooses an accelerator from the number of lines, the spread of their lengths and how much of their bounding box
+     * they cover, and prints the choice.
+     *
+     * @param lines        The lines of the scene.
+     * @param vectorKernel Whether brute force would run on a vector kernel.
+     * @return {@link #BRUTE_FORCE}, {@link #UNIFORM_GRID} or {@link #BVH}.
+     */
+    public static AcceleratorType choose( PackedLines lines, boolean vectorKernel ) {
+        int n = lines.size;
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        double sum = 0, sumSquares = 0;
+        for ( int i = 0; i < n; i++ ) {
+            double lx1 = lines.x1[i], ly1 = lines.y1[i];
+            double lx2 = lines.x2[i], ly2 = lines.y2[i];
+            double length = Math.sqrt( lines.a[i] * lines.a[i] + lines.b[i] * lines.b[i] );
+            sum += length;
+            sumSquares += length * length;
+            x0 = Math.min( x0, Math.min( lx1, lx2 ) );
+            y0 = Math.min( y0, Math.min( ly1, ly2 ) );
+            x1 = Math.max( x1, Math.max( lx1, lx2 ) );
+            y1 = Math.max( y1, Math.max( ly1, ly2 ) );
+        }
+        double mean = (n == 0) ? 0 : sum / n;
+        double spread = (mean == 0) ? 0 : Math.sqrt( Math.max( 0, sumSquares / n - mean * mean ) ) / mean;
+        double area = (n == 0) ? 0 : (x1 - x0) * (y1 - y0);
+        // Roughly the fraction of grid cells a line lands in when cells are about as long as the average line.
+        double fill = (area <= 0) ? 1 : n * mean * mean / area;
+
+        AcceleratorType type;
+        if ( n <= (vectorKernel ? VECTOR_BRUTE_FORCE_LIMIT : BRUTE_FORCE_LIMIT) )
+            type = BRUTE_FORCE;
+        else if ( n >= GRID_MIN_LINES && spread <= GRID_MAX_LENGTH_SPREAD && fill >= GRID_MIN_FILL )
+            type = UNIFORM_GRID;
+        else
+            type = BVH;
+        System.out.println( "PhotonWorld: " + n + " lines, mean length " + (float) mean + ", length spread " + (float) spread
+                + ", bounds " + (float) (x1 - x0) + "x" + (float) (y1 - y0) + ": using " + type );
+        return type;
+    }
+}
@@ -0,0 +1,197 @@
+package acceleration;
+
+import java.util.Arrays;
+
+/**
+ * The first line hit in every direction around a fixed point, such as a light source that does not move. The directions
+ * are cut into intervals at the endpoints of every line, so within an interval the same lines lie in front of the point
+ * and the closest of them only changes where two of them cross. Each interval is split until the closest line is the
+ * same at both of its ends, after which a ray leaving the point is resolved by one binary search and one line test.
+ * <p>
+ * Angles are measured as diamond angles, which grow monotonically with the real angle but need no trig.
+ */
+public class AngularHitCache implements Accelerator {
+    // Directions this close to an interval's end, in diamond angle, are left to the wrapped accelerator.
+    private static final double EDGE_MARGIN = 1e-9;
+    // Two lines closer than this, relative to their distance, at an interval's end could swap order through rounding.
+    private static final double TIE_MARGIN = 1e-9;
+    private static final int MAX_SPLITS = 8;
+    private static final int UNKNOWN = -1;
+    private final PackedLines lines;
+    private final Accelerator base;
+    private final double x, y;
+    private final long version;
+    // Interval k covers bounds[k] up to bounds[k + 1], with the last wrapping past 4 back to the first, and is hit first
+    // by owner[k], or UNKNOWN if no single line is.
+    private double[] bounds;
+    private int[] owner;
+    private int intervals = 0;
+
+    /**
+     * Sweeps the directions around (x, y).
+     *
+     * @param lines   The lines of the scene.
+     * @param base    An accelerator over the same lines, used to find owners and to answer the rays the cache cannot.
+     * @param x       The x coordinate rays leave from.
+     * @param y       The y coordinate rays leave from.
+     * @param version The version of the scene being swept, so the owner can tell when the cache is stale.
+     */
+    public AngularHitCache( PackedLines lines, Accelerator base, double x, double y, long version ) {
+        this.lines = lines;
+        this.base = base;
+        this.x = x;
+        this.y = y;
+        this.version = version;
+        int n = lines.size;
+        double[] angles = new double[2 * n];
+        int count = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( lines.x1[i] != x || lines.y1[i] != y )
+                angles[count++] = diamondAngle( lines.x1[i] - x, lines.y1[i] - y );
+            if ( lines.x2[i] != x || lines.y2[i] != y )
+                angles[count++] = diamondAngle( lines.x2[i] - x, lines.y2[i] - y );
+        }
+        Arrays.sort( angles, 0, count );
+        int unique = 0;
+        for ( int k = 0; k < count; k++ ) {
+            if ( unique == 0 || angles[k] != angles[unique - 1] )
+                angles[unique++] = angles[k];
+        }
+        bounds = new double[2 * unique + 2];
+        owner = new int[2 * unique + 1];
+        if ( unique == 0 ) {
+            angles = new double[] { 0 };
+            append( 0, UNKNOWN );
+        }
+        RayQuery query = new RayQuery();
+        for ( int k = 0; k < unique; k++ ) {
+            double lo = angles[k];
+            double hi = (k + 1 < unique) ? angles[k + 1] : angles[0] + 4;
+            sweep( lo, hi, owner( lo + EDGE_MARGIN, query ), owner( hi - EDGE_MARGIN, query ), 0, query );
+        }
+        bounds = Arrays.copyOf( bounds, intervals + 1 );
+        bounds[intervals] = angles[0] + 4;
+        owner = Arrays.copyOf( owner, intervals );
+    }
+
+    // Records [lo, hi) as owned by one line when its ends agree, otherwise splits it at its middle.
+    private void sweep( double lo, double hi, int loOwner, int hiOwner, int depth, RayQuery query ) {
+        if ( loOwner == hiOwner || depth == MAX_SPLITS || hi - lo < 4 * EDGE_MARGIN ) {
+            append( lo, (loOwner == hiOwner) ? loOwner : UNKNOWN );
+            return;
+        }
+        double mid = (lo + hi) / 2;
+        sweep( lo, mid, loOwner, owner( mid - EDGE_MARGIN, query ), depth + 1, query );
+        sweep( mid, hi, owner( mid + EDGE_MARGIN, query ), hiOwner, depth + 1, query );
+    }
+
+    private void append( double lo, int line ) {
+        if ( intervals == owner.length ) {
+            owner = Arrays.copyOf( owner, 2 * intervals );
+            bounds = Arrays.copyOf( bounds, 2 * intervals + 1 );
+        }
+        bounds[intervals] = lo;
+        owner[intervals++] = line;
+    }
+
+    // The closest line in the direction of the given diamond angle, or UNKNOWN if there is none or another line is
+    // close enough behind it that rounding could put it in front.
+    private int owner( double angle, RayQuery query ) {
+        double dx = directionX( angle );
+        double dy = directionY( angle );
+        double length = Math.sqrt( dx * dx + dy * dy );
+        dx /= length;
+        dy /= length;
+        query.reset( x, y, dx, dy, -1 );
+        base.closestHit( query );
+        int first = query.getIndex();
+        if ( first < 0 )
+            return UNKNOWN;
+        double t = query.getT();
+        query.reset( x, y, dx, dy, first );
+        base.closestHit( query );
+        if ( query.getIndex() >= 0 && query.getT() <= t * (1 + TIE_MARGIN) )
+            return UNKNOWN;
+        return first;
+    }
+
+    // A monotonic stand-in for the angle of (dx, dy), in [0, 4).
+    static double diamondAngle( double dx, double dy ) {
+        double p = dy / (Math.abs( dx ) + Math.abs( dy ));
+        if ( dx < 0 )
+            return 2 - p;
+        return (dy < 0) ? 4 + p : p;
+    }
+
+    private static double directionX( double angle ) {
+        angle = (angle >= 4) ? angle - 4 : angle;
+        if ( angle < 1 )
+            return 1 - angle;
+        if ( angle < 3 )
+            return -(1 - Math.abs( 2 - angle ));
+        return angle - 3;
+    }
+
+    private static double directionY( double angle ) {
+        angle = (angle >= 4) ? angle - 4 : angle;
+        if ( angle < 1 )
+            return angle;
+        if ( angle < 3 )
+            return 2 - angle;
+        return angle - 4;
+    }
+
+    /**
+     * @return Whether this cache was built for the given scene version and point.
+     */
+    public boolean isCurrent( long version, double x, double y ) {
+        return this.version == version && this.x == x && this.y == y;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        if ( query.x != x || query.y != y || query.getIgnore() >= 0 ) {
+            base.closestHit( query );
+            return;
+        }
+        int line = lookup( query.dx, query.dy );
+        if ( line != UNKNOWN ) {
+            query.test( lines, line );
+            if ( query.getIndex() == line )
+                return;
+        }
+        base.closestHit( query );
+    }
+
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        if ( packet.x != x || packet.y != y ) {
+            base.closestHitPacket( packet );
+            return;
+        }
+        RayQuery query = packet.query;
+        for ( int i = 0; i < packet.size; i++ ) {
+            query.reset( x, y, packet.dx[i], packet.dy[i], -1 );
+            closestHit( query );
+            packet.t[i] = query.getT();
+            packet.index[i] = query.getIndex();
+        }
+    }
+
+    private int lookup( double dx, double dy ) {
+        double angle = diamondAngle( dx, dy );
+        if ( angle < bounds[0] )
+            angle += 4;
+        int lo = 0, hi = owner.length - 1;
+        while ( lo < hi ) {
+            int mid = (lo + hi + 1) >>> 1;
+            if ( bounds[mid] <= angle )
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        if ( angle - bounds[lo] < EDGE_MARGIN || bounds[lo + 1] - angle < EDGE_MARGIN )
+            return UNKNOWN;
+        return owner[lo];
+    }
+}
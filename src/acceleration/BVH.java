@@ -0,0 +1,276 @@
+package acceleration;
+
+/**
+ * A bounding volume hierarchy over line segments. Nodes are split at the median centroid along their longest axis,
+ * stored flat, and traversed front-to-back so a query can stop as soon as no remaining box is closer than its hit.
+ * Lines that move can be followed with {@link #refit}, which keeps the tree and only recomputes its boxes.
+ */
+public class BVH implements Accelerator {
+    private static final int LEAF_SIZE = 4;
+    private static final double PADDING = 1e-9;
+    private final PackedLines lines;
+    private final int[] primitives;
+    private final double[] centroidX, centroidY;
+    private final double[] minX, minY, maxX, maxY;
+    // Internal nodes store the index of their left child (the right child follows it), leaves their first primitive.
+    private final int[] child;
+    private final int[] count;
+    private int nodeCount = 0;
+    private int depth = 0;
+
+    public BVH( PackedLines lines ) {
+        this( lines, identity( lines.size ) );
+    }
+
+    /**
+     * Builds a tree over some of the lines only.
+     *
+     * @param lines  The lines of the scene.
+     * @param subset The indices of the lines to include. Hits still report indices into <code>lines</code>.
+     */
+    public BVH( PackedLines lines, int[] subset ) {
+        this.lines = lines;
+        int n = subset.length;
+        primitives = subset.clone();
+        // Indexed like primitives, and swapped along with them while splitting.
+        centroidX = new double[n];
+        centroidY = new double[n];
+        for ( int k = 0; k < n; k++ ) {
+            int i = primitives[k];
+            centroidX[k] = (lines.x1[i] + lines.x2[i]) / 2;
+            centroidY[k] = (lines.y1[i] + lines.y2[i]) / 2;
+        }
+        int maxNodes = Math.max( 1, 2 * n );
+        minX = new double[maxNodes];
+        minY = new double[maxNodes];
+        maxX = new double[maxNodes];
+        maxY = new double[maxNodes];
+        child = new int[maxNodes];
+        count = new int[maxNodes];
+        nodeCount = 1;
+        build( 0, 0, n, 1 );
+    }
+
+    private static int[] identity( int n ) {
+        int[] indices = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    private void build( int node, int start, int end, int level ) {
+        depth = Math.max( depth, level );
+        double bx0 = Double.POSITIVE_INFINITY, by0 = Double.POSITIVE_INFINITY;
+        double bx1 = Double.NEGATIVE_INFINITY, by1 = Double.NEGATIVE_INFINITY;
+        double cx0 = Double.POSITIVE_INFINITY, cy0 = Double.POSITIVE_INFINITY;
+        double cx1 = Double.NEGATIVE_INFINITY, cy1 = Double.NEGATIVE_INFINITY;
+        for ( int i = start; i < end; i++ ) {
+            int p = primitives[i];
+            double x1 = lines.x1[p], y1 = lines.y1[p];
+            double x2 = lines.x2[p], y2 = lines.y2[p];
+            bx0 = Math.min( bx0, Math.min( x1, x2 ) );
+            by0 = Math.min( by0, Math.min( y1, y2 ) );
+            bx1 = Math.max( bx1, Math.max( x1, x2 ) );
+            by1 = Math.max( by1, Math.max( y1, y2 ) );
+            cx0 = Math.min( cx0, centroidX[i] );
+            cy0 = Math.min( cy0, centroidY[i] );
+            cx1 = Math.max( cx1, centroidX[i] );
+            cy1 = Math.max( cy1, centroidY[i] );
+        }
+        setBox( node, bx0, by0, bx1, by1 );
+        if ( end - start <= LEAF_SIZE ) {
+            child[node] = start;
+            count[node] = end - start;
+            return;
+        }
+        double[] keys = (cx1 - cx0 >= cy1 - cy0) ? centroidX : centroidY;
+        int mid = (start + end) >>> 1;
+        select( keys, start, end - 1, mid );
+        int left = nodeCount;
+        nodeCount += 2;
+        child[node] = left;
+        count[node] = 0;
+        build( left, start, mid, level + 1 );
+        build( left + 1, mid, end, level + 1 );
+    }
+
+    // Padded so rounding in the box test can never cull a segment the line test would accept.
+    private void setBox( int node, double bx0, double by0, double bx1, double by1 ) {
+        minX[node] = bx0 - PADDING * (1 + Math.abs( bx0 ));
+        minY[node] = by0 - PADDING * (1 + Math.abs( by0 ));
+        maxX[node] = bx1 + PADDING * (1 + Math.abs( bx1 ));
+        maxY[node] = by1 + PADDING * (1 + Math.abs( by1 ));
+    }
+
+    /**
+     * Recomputes every box from the current positions of the lines, bottom up. Children are always stored after their
+     * parent, so walking the nodes backwards visits both children before the node itself. The tree gets looser as lines
+     * move away from where it was built, but never misses a hit.
+     */
+    public void refit() {
+        for ( int node = nodeCount - 1; node >= 0; node-- ) {
+            if ( count[node] > 0 || primitives.length == 0 ) {
+                double bx0 = Double.POSITIVE_INFINITY, by0 = Double.POSITIVE_INFINITY;
+                double bx1 = Double.NEGATIVE_INFINITY, by1 = Double.NEGATIVE_INFINITY;
+                for ( int k = child[node], end = child[node] + count[node]; k < end; k++ ) {
+                    int p = primitives[k];
+                    bx0 = Math.min( bx0, Math.min( lines.x1[p], lines.x2[p] ) );
+                    by0 = Math.min( by0, Math.min( lines.y1[p], lines.y2[p] ) );
+                    bx1 = Math.max( bx1, Math.max( lines.x1[p], lines.x2[p] ) );
+                    by1 = Math.max( by1, Math.max( lines.y1[p], lines.y2[p] ) );
+                }
+                setBox( node, bx0, by0, bx1, by1 );
+            } else {
+                int left = child[node];
+                minX[node] = Math.min( minX[left], minX[left + 1] );
+                minY[node] = Math.min( minY[left], minY[left + 1] );
+                maxX[node] = Math.max( maxX[left], maxX[left + 1] );
+                maxY[node] = Math.max( maxY[left], maxY[left + 1] );
+            }
+        }
+    }
+
+    // Partially sorts primitives[lo..hi] so that position k holds the k-th smallest key.
+    private void select( double[] keys, int lo, int hi, int k ) {
+        while ( hi > lo ) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while ( i <= j ) {
+                while ( keys[i] < pivot ) i++;
+                while ( keys[j] > pivot ) j--;
+                if ( i <= j ) {
+                    swap( i, j );
+                    i++;
+                    j--;
+                }
+            }
+            if ( k <= j ) hi = j;
+            else if ( k >= i ) lo = i;
+            else return;
+        }
+    }
+
+    private void swap( int i, int j ) {
+        int p = primitives[i];
+        primitives[i] = primitives[j];
+        primitives[j] = p;
+        double cx = centroidX[i];
+        centroidX[i] = centroidX[j];
+        centroidX[j] = cx;
+        double cy = centroidY[i];
+        centroidY[i] = centroidY[j];
+        centroidY[j] = cy;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        if ( primitives.length == 0 )
+            return;
+        int[] nodes = query.nodeStack( depth + 2 );
+        double[] entries = query.entryStack();
+        double invDx = 1 / query.dx;
+        double invDy = 1 / query.dy;
+        double rootT = intersectBox( 0, query, invDx, invDy );
+        if ( rootT == Double.POSITIVE_INFINITY )
+            return;
+        int sp = 0;
+        nodes[sp] = 0;
+        entries[sp++] = rootT;
+        while ( sp > 0 ) {
+            sp--;
+            if ( entries[sp] > query.getT() )
+                continue;
+            int node = nodes[sp];
+            if ( count[node] > 0 ) {
+                for ( int i = child[node], end = child[node] + count[node]; i < end; i++ ) {
+                    query.test( lines, primitives[i] );
+                }
+                continue;
+            }
+            int left = child[node];
+            double tl = intersectBox( left, query, invDx, invDy );
+            double tr = intersectBox( left + 1, query, invDx, invDy );
+            // Push the far child first so the near one is popped next.
+            if ( tl <= tr ) {
+                if ( tr != Double.POSITIVE_INFINITY ) {
+                    nodes[sp] = left + 1;
+                    entries[sp++] = tr;
+                }
+                if ( tl != Double.POSITIVE_INFINITY ) {
+                    nodes[sp] = left;
+                    entries[sp++] = tl;
+                }
+            } else {
+                if ( tl != Double.POSITIVE_INFINITY ) {
+                    nodes[sp] = left;
+                    entries[sp++] = tl;
+                }
+                nodes[sp] = left + 1;
+                entries[sp++] = tr;
+            }
+        }
+    }
+
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        if ( primitives.length == 0 || packet.size == 0 )
+            return;
+        double mdx = 0, mdy = 0;
+        for ( int i = 0; i < packet.size; i++ ) {
+            mdx += packet.dx[i];
+            mdy += packet.dy[i];
+        }
+        int[] nodes = packet.nodeStack( depth + 2 );
+        int sp = 0;
+        nodes[sp++] = 0;
+        while ( sp > 0 ) {
+            int node = nodes[--sp];
+            if ( !packet.hitsBox( minX[node], minY[node], maxX[node], maxY[node] ) )
+                continue;
+            if ( count[node] > 0 ) {
+                for ( int i = child[node], end = child[node] + count[node]; i < end; i++ ) {
+                    packet.test( lines, primitives[i] );
+                }
+                continue;
+            }
+            // Visit the child whose center is nearer along the packet's average direction first.
+            int left = child[node];
+            double dl = (minX[left] + maxX[left] - 2 * packet.x) * mdx + (minY[left] + maxY[left] - 2 * packet.y) * mdy;
+            double dr = (minX[left + 1] + maxX[left + 1] - 2 * packet.x) * mdx + (minY[left + 1] + maxY[left + 1] - 2 * packet.y) * mdy;
+            if ( dl <= dr ) {
+                nodes[sp++] = left + 1;
+                nodes[sp++] = left;
+            } else {
+                nodes[sp++] = left;
+                nodes[sp++] = left + 1;
+            }
+        }
+    }
+
+    // Returns the distance along the ray at which it enters the node, or infinity if it misses or enters past the
+    // current closest hit.
+    private double intersectBox( int node, RayQuery query, double invDx, double invDy ) {
+        double tMin = 0;
+        double tMax = query.getT();
+        if ( query.dx == 0 ) {
+            if ( query.x < minX[node] || query.x > maxX[node] )
+                return Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (minX[node] - query.x) * invDx;
+            double t2 = (maxX[node] - query.x) * invDx;
+            tMin = Math.max( tMin, Math.min( t1, t2 ) );
+            tMax = Math.min( tMax, Math.max( t1, t2 ) );
+        }
+        if ( query.dy == 0 ) {
+            if ( query.y < minY[node] || query.y > maxY[node] )
+                return Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (minY[node] - query.y) * invDy;
+            double t2 = (maxY[node] - query.y) * invDy;
+            tMin = Math.max( tMin, Math.min( t1, t2 ) );
+            tMax = Math.min( tMax, Math.max( t1, t2 ) );
+        }
+        return (tMin <= tMax) ? tMin : Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,36 @@
+package acceleration;
+
+/**
+ * Tests every line against every ray. Kept as the reference the other accelerators are compared against.
+ */
+public class BruteForce implements Accelerator {
+    private final PackedLines lines;
+    private final IntersectionKernel kernel;
+
+    /**
+     * @param lines  The lines to test.
+     * @param kernel The vector kernel to test them with, or null for the scalar loop.
+     */
+    public BruteForce( PackedLines lines, IntersectionKernel kernel ) {
+        this.lines = lines;
+        this.kernel = kernel;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        if ( kernel != null ) {
+            kernel.closestHit( lines, query );
+            return;
+        }
+        for ( int i = 0; i < lines.size; i++ ) {
+            query.test( lines, i );
+        }
+    }
+
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        for ( int i = 0; i < lines.size; i++ ) {
+            packet.test( lines, i );
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package acceleration;
+
+/**
+ * A brute force closest-hit search over every line of a {@link PackedLines} that reports exactly the hit
+ * {@link RayQuery#test} would. Implemented with the incubating Vector API in <code>src-vector</code>, which is only
+ * compiled and run with <code>--add-modules jdk.incubator.vector</code>; {@link #load} returns null without it and
+ * callers fall back to the scalar loop.
+ */
+public abstract class IntersectionKernel {
+    private static final String VECTOR_KERNEL = "acceleration.VectorIntersectionKernel";
+
+    public abstract void closestHit( PackedLines lines, RayQuery query );
+
+    /**
+     * Loads the vector kernel if it and the Vector API are available.
+     *
+     * @param singlePrecision Whether to use the single precision kernel, which covers twice as many lines per
+     *                        instruction and retests anything it cannot decide in double precision.
+     * @return The kernel, or null if the scalar loop has to be used.
+     */
+    public static IntersectionKernel load( boolean singlePrecision ) {
+        try {
+            return (IntersectionKernel) Class.forName( VECTOR_KERNEL ).getConstructor( boolean.class ).newInstance( singlePrecision );
+        } catch ( Exception e ) {
+            return null;
+        } catch ( LinkageError e ) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package acceleration;
+
+import entities.Line;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The lines of a scene compiled into flat arrays: endpoints, the <code>Ax + By = C</code> form of each line, its unit
+ * normal and its material. Kept up to date as lines are added and edited so the tracing loops read contiguous memory
+ * instead of going through two {@link s2d.math.Vec}s per line, and never recompute the line equations.
+ */
+public class PackedLines {
+    int size;
+    double[] x1 = {}, y1 = {}, x2 = {}, y2 = {};
+    double[] a = {}, b = {}, c = {};
+    double[] normalX = {}, normalY = {};
+    double[] diffuse = {}, reflect = {}, transmit = {};
+    // Single precision copies of the endpoints and line equations for the float vector kernel.
+    float[] floatX1 = {}, floatY1 = {}, floatX2 = {}, floatY2 = {};
+    float[] floatA = {}, floatB = {}, floatC = {};
+    float[] floatNorm = {};
+    float floatMaxAbsX, floatMaxAbsY;
+    private Line[] lines;
+
+    public PackedLines( List<Line> lineList ) {
+        size = lineList.size();
+        lines = lineList.toArray( new Line[size] );
+        grow( size );
+        for ( int i = 0; i < size; i++ ) {
+            fill( i );
+        }
+    }
+
+    private void grow( int capacity ) {
+        x1 = Arrays.copyOf( x1, capacity );
+        y1 = Arrays.copyOf( y1, capacity );
+        x2 = Arrays.copyOf( x2, capacity );
+        y2 = Arrays.copyOf( y2, capacity );
+        a = Arrays.copyOf( a, capacity );
+        b = Arrays.copyOf( b, capacity );
+        c = Arrays.copyOf( c, capacity );
+        normalX = Arrays.copyOf( normalX, capacity );
+        normalY = Arrays.copyOf( normalY, capacity );
+        diffuse = Arrays.copyOf( diffuse, capacity );
+        reflect = Arrays.copyOf( reflect, capacity );
+        transmit = Arrays.copyOf( transmit, capacity );
+        floatX1 = Arrays.copyOf( floatX1, capacity );
+        floatY1 = Arrays.copyOf( floatY1, capacity );
+        floatX2 = Arrays.copyOf( floatX2, capacity );
+        floatY2 = Arrays.copyOf( floatY2, capacity );
+        floatA = Arrays.copyOf( floatA, capacity );
+        floatB = Arrays.copyOf( floatB, capacity );
+        floatC = Arrays.copyOf( floatC, capacity );
+        floatNorm = Arrays.copyOf( floatNorm, capacity );
+        lines = Arrays.copyOf( lines, capacity );
+    }
+
+    private void fill( int i ) {
+        Line lin = lines[i];
+        x1[i] = lin.getP1().getX();
+        y1[i] = lin.getP1().getY();
+        x2[i] = lin.getP2().getX();
+        y2[i] = lin.getP2().getY();
+        a[i] = y2[i] - y1[i];
+        b[i] = x1[i] - x2[i];
+        c[i] = a[i] * x1[i] + b[i] * y1[i];
+        double length = Math.sqrt( a[i] * a[i] + b[i] * b[i] );
+        normalX[i] = (length == 0) ? 0 : a[i] / length;
+        normalY[i] = (length == 0) ? 0 : -b[i] / length;
+        diffuse[i] = lin.getDiffuse();
+        reflect[i] = lin.getReflect();
+        transmit[i] = lin.getTransmit();
+        floatX1[i] = (float) x1[i];
+        floatY1[i] = (float) y1[i];
+        floatX2[i] = (float) x2[i];
+        floatY2[i] = (float) y2[i];
+        floatA[i] = (float) a[i];
+        floatB[i] = (float) b[i];
+        floatC[i] = (float) c[i];
+        floatNorm[i] = (float) (Math.abs( a[i] ) + Math.abs( b[i] ));
+        // Only ever grows, which keeps the float kernel's error bounds safe when a line moves inwards.
+        floatMaxAbsX = Math.max( floatMaxAbsX, (float) Math.max( Math.abs( x1[i] ), Math.abs( x2[i] ) ) );
+        floatMaxAbsY = Math.max( floatMaxAbsY, (float) Math.max( Math.abs( y1[i] ), Math.abs( y2[i] ) ) );
+    }
+
+    /**
+     * Appends a line, growing the arrays when they are full. Must not run while the lines are being traced.
+     *
+     * @return The index of the new line.
+     */
+    public int append( Line line ) {
+        if ( size == x1.length )
+            grow( Math.max( 16, 2 * size ) );
+        lines[size] = line;
+        fill( size );
+        return size++;
+    }
+
+    /**
+     * Reads line i back from its {@link Line} after it was edited. Must not run while the lines are being traced.
+     *
+     * @return Whether the line moved, as opposed to only its material changing.
+     */
+    public boolean refresh( int i ) {
+        double oldX1 = x1[i], oldY1 = y1[i], oldX2 = x2[i], oldY2 = y2[i];
+        fill( i );
+        return x1[i] != oldX1 || y1[i] != oldY1 || x2[i] != oldX2 || y2[i] != oldY2;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Line getLine( int i ) {
+        return lines[i];
+    }
+
+    public double getNormalX( int i ) {
+        return normalX[i];
+    }
+
+    public double getNormalY( int i ) {
+        return normalY[i];
+    }
+
+    public double getDiffuse( int i ) {
+        return diffuse[i];
+    }
+
+    public double getReflect( int i ) {
+        return reflect[i];
+    }
+
+    public double getTransmit( int i ) {
+        return transmit[i];
+    }
+}
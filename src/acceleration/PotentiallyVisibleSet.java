@@ -0,0 +1,420 @@
+package acceleration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists, for every line, the lines a photon leaving it could hit next, and answers bounce queries from those lists
+ * instead of the whole scene. Meant for static scenes full of walls, where each line only sees a few others.
+ * <p>
+ * A line j is left off the list of line i only when a single wall crosses every segment from i to j, so the lists are
+ * conservative and queries give exactly the hits of the accelerator they wrap. A wall is a run of collinear lines
+ * joined end to end, since floor plans and mazes build their walls out of many short lines that hide little on their
+ * own. Queries that do not start on a line, and lines that see too much for a list to pay off, go to that accelerator.
+ */
+public class PotentiallyVisibleSet implements Accelerator {
+    // Past this many candidates testing the list costs more than asking the wrapped accelerator.
+    private static final int MAX_CANDIDATES = 128;
+    // How many lines crossing the segment between two midpoints are tried as occluders before giving up.
+    private static final int MAX_OCCLUDER_WALK = 8;
+    // Rays leave from rounded hit points, so occluders must cover every segment with a little room to spare.
+    private static final double MARGIN = 1e-6;
+    private static final int RECENT_OCCLUDERS = 8;
+    private static final int LINES_PER_TASK = 64;
+    private final PackedLines lines;
+    private final Accelerator base;
+    // Null for lines that fall back to the wrapped accelerator.
+    private final int[][] candidates;
+    // The lines that hid something from each line, so moving one of them invalidates exactly the lists it shaped.
+    private final int[][] occluders;
+    // Lines added or moved since the lists were built. Every list query tests them too.
+    private final int[] extra;
+    private final int[] wallOf;
+    private final double[] wallX1, wallY1, wallX2, wallY2;
+    // Wall w is made of wallMembers[wallStart[w]] up to (excluding) wallMembers[wallStart[w + 1]].
+    private final int[] wallStart;
+    private final int[] wallMembers;
+
+    private PotentiallyVisibleSet( PackedLines lines, Accelerator base, int[][] candidates, int[][] occluders, int[] extra ) {
+        this.lines = lines;
+        this.base = base;
+        this.candidates = candidates;
+        this.occluders = occluders;
+        this.extra = extra;
+        int n = lines.size;
+        wallOf = new int[n];
+        int walls = joinWalls();
+        wallX1 = new double[walls];
+        wallY1 = new double[walls];
+        wallX2 = new double[walls];
+        wallY2 = new double[walls];
+        wallStart = new int[walls + 1];
+        wallMembers = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            wallStart[wallOf[i] + 1]++;
+        }
+        for ( int w = 0; w < walls; w++ ) {
+            wallStart[w + 1] += wallStart[w];
+        }
+        int[] fill = Arrays.copyOf( wallStart, walls );
+        for ( int i = 0; i < n; i++ ) {
+            wallMembers[fill[wallOf[i]]++] = i;
+        }
+        // A wall spans from its lowest to its highest endpoint along the direction of its first line.
+        for ( int w = 0; w < walls; w++ ) {
+            int first = wallMembers[wallStart[w]];
+            double ux = lines.x2[first] - lines.x1[first];
+            double uy = lines.y2[first] - lines.y1[first];
+            double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+            for ( int m = wallStart[w]; m < wallStart[w + 1]; m++ ) {
+                int i = wallMembers[m];
+                for ( int end = 0; end < 2; end++ ) {
+                    double x = (end == 0) ? lines.x1[i] : lines.x2[i];
+                    double y = (end == 0) ? lines.y1[i] : lines.y2[i];
+                    double along = (x - lines.x1[first]) * ux + (y - lines.y1[first]) * uy;
+                    if ( along < lo ) {
+                        lo = along;
+                        wallX1[w] = x;
+                        wallY1[w] = y;
+                    }
+                    if ( along > hi ) {
+                        hi = along;
+                        wallX2[w] = x;
+                        wallY2[w] = y;
+                    }
+                }
+            }
+        }
+    }
+
+    // Groups lines that share an endpoint and lie exactly on the same line into walls, fills wallOf, and returns how
+    // many walls there are.
+    private int joinWalls() {
+        int n = lines.size;
+        final double[] x = new double[2 * n];
+        final double[] y = new double[2 * n];
+        Integer[] ends = new Integer[2 * n];
+        int[] parent = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            parent[i] = i;
+            x[2 * i] = lines.x1[i];
+            y[2 * i] = lines.y1[i];
+            x[2 * i + 1] = lines.x2[i];
+            y[2 * i + 1] = lines.y2[i];
+            ends[2 * i] = 2 * i;
+            ends[2 * i + 1] = 2 * i + 1;
+        }
+        Arrays.sort( ends, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer e1, Integer e2 ) {
+                int byX = Double.compare( x[e1], x[e2] );
+                return (byX != 0) ? byX : Double.compare( y[e1], y[e2] );
+            }
+        } );
+        for ( int start = 0, end; start < 2 * n; start = end ) {
+            end = start + 1;
+            while ( end < 2 * n && x[ends[end]] == x[ends[start]] && y[ends[end]] == y[ends[start]] ) {
+                end++;
+            }
+            for ( int e = start; e < end; e++ ) {
+                for ( int f = e + 1; f < end; f++ ) {
+                    int i = ends[e] / 2, m = ends[f] / 2;
+                    if ( i != m && collinear( i, m ) )
+                        parent[find( parent, i )] = find( parent, m );
+                }
+            }
+        }
+        int[] wallIndex = new int[n];
+        Arrays.fill( wallIndex, -1 );
+        int walls = 0;
+        for ( int i = 0; i < n; i++ ) {
+            int root = find( parent, i );
+            if ( wallIndex[root] < 0 )
+                wallIndex[root] = walls++;
+            wallOf[i] = wallIndex[root];
+        }
+        return walls;
+    }
+
+    private static int find( int[] parent, int i ) {
+        while ( parent[i] != i ) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private boolean collinear( int i, int m ) {
+        double ux = lines.x2[i] - lines.x1[i];
+        double uy = lines.y2[i] - lines.y1[i];
+        if ( ux == 0 && uy == 0 )
+            return false;
+        return ux * (lines.y1[m] - lines.y1[i]) - uy * (lines.x1[m] - lines.x1[i]) == 0
+                && ux * (lines.y2[m] - lines.y1[i]) - uy * (lines.x2[m] - lines.x1[i]) == 0;
+    }
+
+    /**
+     * Builds the lists for every line.
+     *
+     * @param lines    The lines of the scene.
+     * @param base     An accelerator over the same lines, used to find occluders and to answer the queries lists cannot.
+     * @param executor The threads to build the lists on.
+     * @return The potentially visible set.
+     */
+    public static PotentiallyVisibleSet build( PackedLines lines, Accelerator base, ExecutorService executor ) {
+        int n = lines.size;
+        int[] targets = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            targets[i] = i;
+        }
+        PotentiallyVisibleSet set = new PotentiallyVisibleSet( lines, base, new int[n][], new int[n][], new int[0] );
+        set.compute( targets, executor );
+        return set;
+    }
+
+    /**
+     * Carries the lists over to a new version of the scene. Lines that moved, were added, or lost an occluder get their
+     * lists recomputed, and every list is widened with the lines that moved or were added. Falls back to a full
+     * {@link #build} once too many lines have changed since it last ran.
+     *
+     * @param newLines The new lines. Lines that did not change must keep their index.
+     * @param newBase  An accelerator over the new lines.
+     * @param executor The threads to recompute lists on.
+     * @return The potentially visible set of the new scene.
+     */
+    public PotentiallyVisibleSet update( PackedLines newLines, Accelerator newBase, ExecutorService executor ) {
+        int n = newLines.size;
+        if ( n < lines.size )
+            return build( newLines, newBase, executor );
+        boolean[] changed = new boolean[n];
+        boolean[] inExtra = new boolean[n];
+        int extraCount = 0;
+        for ( int e : extra ) {
+            inExtra[e] = true;
+            extraCount++;
+        }
+        int changedCount = 0;
+        for ( int i = 0; i < n; i++ ) {
+            changed[i] = i >= lines.size || lines.x1[i] != newLines.x1[i] || lines.y1[i] != newLines.y1[i]
+                    || lines.x2[i] != newLines.x2[i] || lines.y2[i] != newLines.y2[i];
+            if ( changed[i] ) {
+                changedCount++;
+                if ( !inExtra[i] ) {
+                    inExtra[i] = true;
+                    extraCount++;
+                }
+            }
+        }
+        if ( extraCount > Math.max( MAX_CANDIDATES, n / 8 ) )
+            return build( newLines, newBase, executor );
+
+        int[] newExtra = new int[extraCount];
+        for ( int i = 0, k = 0; i < n; i++ ) {
+            if ( inExtra[i] )
+                newExtra[k++] = i;
+        }
+        int[][] newCandidates = new int[n][];
+        int[][] newOccluders = new int[n][];
+        System.arraycopy( candidates, 0, newCandidates, 0, lines.size );
+        System.arraycopy( occluders, 0, newOccluders, 0, lines.size );
+        int[] targets = new int[n];
+        int targetCount = 0;
+        for ( int i = 0; i < n; i++ ) {
+            boolean stale = changed[i];
+            if ( !stale && occluders[i] != null ) {
+                for ( int k : occluders[i] ) {
+                    if ( changed[k] ) {
+                        stale = true;
+                        break;
+                    }
+                }
+            }
+            if ( stale ) {
+                newCandidates[i] = null;
+                newOccluders[i] = null;
+                targets[targetCount++] = i;
+            }
+        }
+        PotentiallyVisibleSet set = new PotentiallyVisibleSet( newLines, newBase, newCandidates, newOccluders, newExtra );
+        if ( changedCount > 0 ) {
+            int[] trimmed = new int[targetCount];
+            System.arraycopy( targets, 0, trimmed, 0, targetCount );
+            set.compute( trimmed, executor );
+        }
+        return set;
+    }
+
+    // Fills in the lists of the target lines, spread over the executor.
+    private void compute( final int[] targets, ExecutorService executor ) {
+        ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for ( int from = 0; from < targets.length; from += LINES_PER_TASK ) {
+            final int start = from;
+            final int end = Math.min( targets.length, from + LINES_PER_TASK );
+            tasks.add( new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    RayQuery query = new RayQuery();
+                    int[] found = new int[MAX_CANDIDATES];
+                    int[] marks = new int[lines.size];
+                    for ( int t = start; t < end; t++ ) {
+                        computeLine( targets[t], query, found, marks );
+                    }
+                    return end - start;
+                }
+            } );
+        }
+        try {
+            for ( Future<Integer> future : executor.invokeAll( tasks ) ) {
+                future.get();
+            }
+        } catch ( InterruptedException e ) {
+            // Lists that were not finished stay null, which only sends their queries to the wrapped accelerator.
+            Thread.currentThread().interrupt();
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    private void computeLine( int i, RayQuery query, int[] found, int[] marks ) {
+        int count = 0;
+        int occluderCount = 0;
+        int[] occluderList = new int[8];
+        // Walls that hid one line from i usually hide its neighbours too, and are much cheaper to retry than a walk.
+        int[] recent = new int[RECENT_OCCLUDERS];
+        int recentCount = 0;
+        for ( int j = 0; j < lines.size; j++ ) {
+            if ( j == i )
+                continue;
+            int w = -1;
+            for ( int r = 0; r < recentCount && w < 0; r++ ) {
+                if ( occludes( recent[r], i, j ) )
+                    w = recent[r];
+            }
+            if ( w < 0 ) {
+                w = findOccluder( i, j, query );
+                if ( w >= 0 ) {
+                    System.arraycopy( recent, 0, recent, 1, RECENT_OCCLUDERS - 1 );
+                    recent[0] = w;
+                    recentCount = Math.min( recentCount + 1, RECENT_OCCLUDERS );
+                }
+            }
+            if ( w < 0 ) {
+                if ( count == MAX_CANDIDATES ) {
+                    candidates[i] = null;
+                    occluders[i] = null;
+                    return;
+                }
+                found[count++] = j;
+            } else if ( marks[w] != i + 1 ) {
+                marks[w] = i + 1;
+                int members = wallStart[w + 1] - wallStart[w];
+                if ( occluderCount + members > occluderList.length ) {
+                    occluderList = Arrays.copyOf( occluderList, Math.max( occluderCount + members, occluderCount * 2 ) );
+                }
+                System.arraycopy( wallMembers, wallStart[w], occluderList, occluderCount, members );
+                occluderCount += members;
+            }
+        }
+        int[] list = new int[count];
+        System.arraycopy( found, 0, list, 0, count );
+        int[] hidden = new int[occluderCount];
+        System.arraycopy( occluderList, 0, hidden, 0, occluderCount );
+        occluders[i] = hidden;
+        candidates[i] = list;
+    }
+
+    // Walks the lines crossing the segment between the midpoints of i and j, and returns the first wall among them that
+    // hides all of j from all of i, or -1 if none does.
+    private int findOccluder( int i, int j, RayQuery query ) {
+        double x = (lines.x1[i] + lines.x2[i]) / 2;
+        double y = (lines.y1[i] + lines.y2[i]) / 2;
+        double dx = (lines.x1[j] + lines.x2[j]) / 2 - x;
+        double dy = (lines.y1[j] + lines.y2[j]) / 2 - y;
+        double distance = Math.sqrt( dx * dx + dy * dy );
+        if ( distance == 0 )
+            return -1;
+        dx /= distance;
+        dy /= distance;
+        int ignore = i;
+        for ( int walk = 0; walk < MAX_OCCLUDER_WALK; walk++ ) {
+            query.reset( x, y, dx, dy, ignore );
+            base.closestHit( query );
+            int k = query.getIndex();
+            double t = query.getT();
+            if ( k < 0 || k == j || t >= distance )
+                return -1;
+            if ( occludes( wallOf[k], i, j ) )
+                return wallOf[k];
+            x += dx * t;
+            y += dy * t;
+            distance -= t;
+            ignore = k;
+        }
+        return -1;
+    }
+
+    // True when wall w crosses every segment from a point of i to a point of j. That holds when i and j lie strictly on
+    // opposite sides of w and the four segments joining their endpoints all cross w, since those bound the rest.
+    private boolean occludes( int w, int i, int j ) {
+        double a = wallY2[w] - wallY1[w];
+        double b = wallX1[w] - wallX2[w];
+        double c = a * wallX1[w] + b * wallY1[w];
+        double length = Math.sqrt( a * a + b * b );
+        if ( length == 0 )
+            return false;
+        double margin = MARGIN * length;
+        double si1 = a * lines.x1[i] + b * lines.y1[i] - c;
+        double si2 = a * lines.x2[i] + b * lines.y2[i] - c;
+        double sj1 = a * lines.x1[j] + b * lines.y1[j] - c;
+        double sj2 = a * lines.x2[j] + b * lines.y2[j] - c;
+        boolean iAbove = si1 > margin && si2 > margin;
+        boolean iBelow = si1 < -margin && si2 < -margin;
+        boolean jAbove = sj1 > margin && sj2 > margin;
+        boolean jBelow = sj1 < -margin && sj2 < -margin;
+        if ( !(iAbove && jBelow) && !(iBelow && jAbove) )
+            return false;
+        return crossesInside( w, lines.x1[i], lines.y1[i], si1, lines.x1[j], lines.y1[j], sj1, length )
+                && crossesInside( w, lines.x1[i], lines.y1[i], si1, lines.x2[j], lines.y2[j], sj2, length )
+                && crossesInside( w, lines.x2[i], lines.y2[i], si2, lines.x1[j], lines.y1[j], sj1, length )
+                && crossesInside( w, lines.x2[i], lines.y2[i], si2, lines.x2[j], lines.y2[j], sj2, length );
+    }
+
+    // Whether the segment from p to q, whose signed distances from w's line are sp and sq, crosses it within w.
+    private boolean crossesInside( int w, double px, double py, double sp, double qx, double qy, double sq, double length ) {
+        double s = sp / (sp - sq);
+        double cx = px + s * (qx - px);
+        double cy = py + s * (qy - py);
+        double wx = wallX2[w] - wallX1[w];
+        double wy = wallY2[w] - wallY1[w];
+        double u = ((cx - wallX1[w]) * wx + (cy - wallY1[w]) * wy) / (length * length);
+        double margin = MARGIN / length;
+        return u > margin && u < 1 - margin;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        int from = query.getIgnore();
+        int[] list = (from >= 0 && from < candidates.length) ? candidates[from] : null;
+        if ( list == null ) {
+            base.closestHit( query );
+            return;
+        }
+        for ( int i = 0; i < list.length; i++ ) {
+            query.test( lines, list[i] );
+        }
+        for ( int i = 0; i < extra.length; i++ ) {
+            query.test( lines, extra[i] );
+        }
+    }
+
+    // Packets leave light sources rather than lines, so there is no list to use.
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        base.closestHitPacket( packet );
+    }
+}
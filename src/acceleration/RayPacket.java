@@ -0,0 +1,129 @@
+package acceleration;
+
+/**
+ * Up to {@link #MAX_SIZE} rays leaving the same point, traced together so that the line and box data they are tested
+ * against is loaded once for the whole packet. Each emitter thread owns one.
+ */
+public class RayPacket {
+    public static final int MAX_SIZE = 16;
+    double x, y;
+    int size;
+    final double[] dx = new double[MAX_SIZE], dy = new double[MAX_SIZE];
+    final double[] invDx = new double[MAX_SIZE], invDy = new double[MAX_SIZE];
+    final double[] rA = new double[MAX_SIZE], rB = new double[MAX_SIZE], rC = new double[MAX_SIZE];
+    final double[] t = new double[MAX_SIZE];
+    final int[] index = new int[MAX_SIZE];
+    final RayQuery query = new RayQuery();
+    private int[] nodeStack = new int[64];
+
+    public void reset( double x, double y ) {
+        this.x = x;
+        this.y = y;
+        size = 0;
+    }
+
+    /**
+     * Adds a ray to the packet.
+     *
+     * @param dx The X component of the ray's direction. Must be normalized together with <code>dy</code>.
+     * @param dy The Y component of the ray's direction.
+     */
+    public void add( double dx, double dy ) {
+        int i = size++;
+        this.dx[i] = dx;
+        this.dy[i] = dy;
+        invDx[i] = 1 / dx;
+        invDy[i] = 1 / dy;
+        // Same setup as RayQuery.reset so packets find exactly the hits single rays would.
+        double sdx = x + dx;
+        double sdy = y + dy;
+        rA[i] = sdy - y;
+        rB[i] = x - sdx;
+        rC[i] = rA[i] * x + rB[i] * y;
+        t[i] = Double.POSITIVE_INFINITY;
+        index[i] = -1;
+    }
+
+    void test( PackedLines lines, int l ) {
+        double lx1 = lines.x1[l];
+        double ly1 = lines.y1[l];
+        double lx2 = lines.x2[l];
+        double ly2 = lines.y2[l];
+        double A = lines.a[l];
+        double B = lines.b[l];
+        double num = lines.c[l] - A * x - B * y;
+        for ( int i = 0; i < size; i++ ) {
+            boolean firstCheck = (rA[i] * lx1 + rB[i] * ly1 > rC[i]) != (rA[i] * lx2 + rB[i] * ly2 > rC[i]) || (rA[i] * lx1 + rB[i] * ly1 == rC[i]) != (rA[i] * lx2 + rB[i] * ly2 == rC[i]);
+            if ( firstCheck ) {
+                double hit = num / (A * dx[i] + B * dy[i]);
+                if ( hit >= 0 && (hit < t[i] || (hit == t[i] && l < index[i])) ) {
+                    t[i] = hit;
+                    index[i] = l;
+                }
+            }
+        }
+    }
+
+    // True if any ray of the packet enters the box before its current closest hit.
+    boolean hitsBox( double minX, double minY, double maxX, double maxY ) {
+        for ( int i = 0; i < size; i++ ) {
+            double tMin = 0;
+            double tMax = t[i];
+            if ( dx[i] == 0 ) {
+                if ( x < minX || x > maxX )
+                    continue;
+            } else {
+                double t1 = (minX - x) * invDx[i];
+                double t2 = (maxX - x) * invDx[i];
+                tMin = Math.max( tMin, Math.min( t1, t2 ) );
+                tMax = Math.min( tMax, Math.max( t1, t2 ) );
+            }
+            if ( dy[i] == 0 ) {
+                if ( y < minY || y > maxY )
+                    continue;
+            } else {
+                double t1 = (minY - y) * invDy[i];
+                double t2 = (maxY - y) * invDy[i];
+                tMin = Math.max( tMin, Math.min( t1, t2 ) );
+                tMax = Math.min( tMax, Math.max( t1, t2 ) );
+            }
+            if ( tMin <= tMax )
+                return true;
+        }
+        return false;
+    }
+
+    int[] nodeStack( int size ) {
+        if ( nodeStack.length < size )
+            nodeStack = new int[size];
+        return nodeStack;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getDx( int i ) {
+        return dx[i];
+    }
+
+    public double getDy( int i ) {
+        return dy[i];
+    }
+
+    public double getT( int i ) {
+        return t[i];
+    }
+
+    public int getIndex( int i ) {
+        return index[i];
+    }
+}
@@ -0,0 +1,114 @@
+package acceleration;
+
+import java.util.Arrays;
+
+/**
+ * A reusable ray and its closest hit so far. Each emitter thread owns one, so none of this is synchronized.
+ */
+public class RayQuery {
+    double x, y, dx, dy;
+    double rA, rB, rC;
+    private int ignore;
+    private double t;
+    private int index;
+    private int[] nodeStack = new int[64];
+    private double[] entryStack = new double[64];
+    private int[] mailbox = new int[0];
+    private int stamp = 0;
+    private double[] doubleScratch = new double[0];
+    private float[] floatScratch = new float[0];
+
+    public void reset( double x, double y, double dx, double dy, int ignore ) {
+        this.x = x;
+        this.y = y;
+        this.dx = dx;
+        this.dy = dy;
+        double sdx = x + dx;
+        double sdy = y + dy;
+        rA = sdy - y;
+        rB = x - sdx;
+        rC = rA * x + rB * y;
+        this.ignore = ignore;
+        t = Double.POSITIVE_INFINITY;
+        index = -1;
+    }
+
+    // Same test the brute force loop always did. Ties on t go to the lowest index so every accelerator agrees.
+    void test( PackedLines lines, int i ) {
+        if ( i == ignore )
+            return;
+        double lx1 = lines.x1[i];
+        double ly1 = lines.y1[i];
+        double lx2 = lines.x2[i];
+        double ly2 = lines.y2[i];
+        boolean firstCheck = (rA * lx1 + rB * ly1 > rC) != (rA * lx2 + rB * ly2 > rC) || (rA * lx1 + rB * ly1 == rC) != (rA * lx2 + rB * ly2 == rC);
+        if ( firstCheck ) { // intersects, determine at which point.
+            double t = (lines.c[i] - lines.a[i] * x - lines.b[i] * y) / (lines.a[i] * dx + lines.b[i] * dy);
+            if ( t >= 0 ) {
+                if ( t < this.t || (t == this.t && i < index) ) {
+                    this.t = t;
+                    index = i;
+                }
+            }
+        }
+    }
+
+    // Records a hit found outside of test, keeping the same tie-break.
+    void offer( double t, int i ) {
+        if ( t < this.t || (t == this.t && i < index) ) {
+            this.t = t;
+            index = i;
+        }
+    }
+
+    int getIgnore() {
+        return ignore;
+    }
+
+    double[] doubleScratch( int size ) {
+        if ( doubleScratch.length < size )
+            doubleScratch = new double[size];
+        return doubleScratch;
+    }
+
+    float[] floatScratch( int size ) {
+        if ( floatScratch.length < size )
+            floatScratch = new float[size];
+        return floatScratch;
+    }
+
+    int[] nodeStack( int size ) {
+        if ( nodeStack.length < size ) {
+            nodeStack = new int[size];
+            entryStack = new double[size];
+        }
+        return nodeStack;
+    }
+
+    double[] entryStack() {
+        return entryStack;
+    }
+
+    // Per-ray marks so a line binned into several grid cells is only tested once.
+    int[] mailbox( int size ) {
+        if ( mailbox.length < size )
+            mailbox = new int[size];
+        return mailbox;
+    }
+
+    int nextStamp() {
+        if ( stamp == Integer.MAX_VALUE ) {
+            Arrays.fill( mailbox, 0 );
+            stamp = 0;
+        }
+        return ++stamp;
+    }
+
+    public double getT() {
+        return t;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,40 @@
+package acceleration;
+
+/**
+ * A static accelerator built once over most of the scene, plus a small {@link BVH} over the lines that were added or
+ * moved since, which is refit in place on every edit. Queries go through both, so editing a line costs a refit of the
+ * small tree instead of a rebuild of the large one.
+ * <p>
+ * The static accelerator may still test a moved line, at its new position, wherever it used to be. That only repeats a
+ * test the dynamic tree also makes, so hits are the same as after a full rebuild.
+ */
+public class TwoLevelAccelerator implements Accelerator {
+    private final Accelerator staticAccelerator;
+    private final BVH dynamicTree;
+
+    public TwoLevelAccelerator( Accelerator staticAccelerator, BVH dynamicTree ) {
+        this.staticAccelerator = staticAccelerator;
+        this.dynamicTree = dynamicTree;
+    }
+
+    public Accelerator getStaticAccelerator() {
+        return staticAccelerator;
+    }
+
+    public BVH getDynamicTree() {
+        return dynamicTree;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        staticAccelerator.closestHit( query );
+        dynamicTree.closestHit( query );
+    }
+
+    // The static side goes first, since some accelerators overwrite the packet's results rather than improve on them.
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        staticAccelerator.closestHitPacket( packet );
+        dynamicTree.closestHitPacket( packet );
+    }
+}
@@ -0,0 +1,164 @@
+package acceleration;
+
+/**
+ * A uniform grid over line segments. Every line is binned into each cell it passes through, and rays walk the cells
+ * they cross with a 2D DDA, stopping at the first cell that ends past the closest hit found so far.
+ */
+public class UniformGrid implements Accelerator {
+    private static final double CELLS_PER_LINE = 2;
+    private static final int MAX_CELLS = 1 << 22;
+    private static final double PADDING = 1e-9;
+    private final PackedLines lines;
+    private final double originX, originY, cellSize;
+    private final int columns, rows;
+    // Cell c holds cellItems[cellStart[c]] up to (excluding) cellItems[cellStart[c + 1]].
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    public UniformGrid( PackedLines lines ) {
+        this.lines = lines;
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for ( int i = 0; i < lines.size; i++ ) {
+            x0 = Math.min( x0, Math.min( lines.x1[i], lines.x2[i] ) );
+            y0 = Math.min( y0, Math.min( lines.y1[i], lines.y2[i] ) );
+            x1 = Math.max( x1, Math.max( lines.x1[i], lines.x2[i] ) );
+            y1 = Math.max( y1, Math.max( lines.y1[i], lines.y2[i] ) );
+        }
+        if ( lines.size == 0 ) {
+            x0 = y0 = 0;
+            x1 = y1 = 1;
+        }
+        double pad = PADDING * (1 + Math.max( Math.max( Math.abs( x0 ), Math.abs( y0 ) ), Math.max( Math.abs( x1 ), Math.abs( y1 ) ) ));
+        originX = x0 - pad;
+        originY = y0 - pad;
+        double width = Math.max( x1 + pad - originX, pad );
+        double height = Math.max( y1 + pad - originY, pad );
+        long targetCells = Math.min( MAX_CELLS, Math.max( 1, (long) (CELLS_PER_LINE * lines.size) ) );
+        cellSize = Math.max( Math.sqrt( width * height / targetCells ), Math.max( width, height ) / MAX_CELLS );
+        columns = Math.max( 1, (int) Math.ceil( width / cellSize ) );
+        rows = Math.max( 1, (int) Math.ceil( height / cellSize ) );
+
+        cellStart = new int[columns * rows + 1];
+        for ( int i = 0; i < lines.size; i++ ) {
+            bin( i, null );
+        }
+        for ( int c = 0; c < columns * rows; c++ ) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellItems = new int[cellStart[columns * rows]];
+        int[] fill = new int[columns * rows];
+        System.arraycopy( cellStart, 0, fill, 0, fill.length );
+        for ( int i = 0; i < lines.size; i++ ) {
+            bin( i, fill );
+        }
+    }
+
+    // Walks the cells covered by line i row by row. Counts them into cellStart when fill is null, otherwise stores i.
+    private void bin( int i, int[] fill ) {
+        double lx1 = lines.x1[i], ly1 = lines.y1[i];
+        double lx2 = lines.x2[i], ly2 = lines.y2[i];
+        double slack = cellSize * 1e-6;
+        int rowMin = clamp( (int) Math.floor( (Math.min( ly1, ly2 ) - slack - originY) / cellSize ), rows );
+        int rowMax = clamp( (int) Math.floor( (Math.max( ly1, ly2 ) + slack - originY) / cellSize ), rows );
+        for ( int row = rowMin; row <= rowMax; row++ ) {
+            double bandLo = Math.max( originY + row * cellSize, Math.min( ly1, ly2 ) );
+            double bandHi = Math.min( originY + (row + 1) * cellSize, Math.max( ly1, ly2 ) );
+            double xa, xb;
+            if ( ly1 == ly2 ) {
+                xa = lx1;
+                xb = lx2;
+            } else {
+                xa = lx1 + (lx2 - lx1) * (bandLo - ly1) / (ly2 - ly1);
+                xb = lx1 + (lx2 - lx1) * (bandHi - ly1) / (ly2 - ly1);
+            }
+            int colMin = clamp( (int) Math.floor( (Math.min( xa, xb ) - slack - originX) / cellSize ), columns );
+            int colMax = clamp( (int) Math.floor( (Math.max( xa, xb ) + slack - originX) / cellSize ), columns );
+            for ( int col = colMin; col <= colMax; col++ ) {
+                int cell = row * columns + col;
+                if ( fill == null )
+                    cellStart[cell + 1]++;
+                else
+                    cellItems[fill[cell]++] = i;
+            }
+        }
+    }
+
+    private static int clamp( int v, int size ) {
+        return (v < 0) ? 0 : (v >= size) ? size - 1 : v;
+    }
+
+    @Override
+    public void closestHit( RayQuery query ) {
+        double x = query.x, y = query.y, dx = query.dx, dy = query.dy;
+        double maxXBound = originX + columns * cellSize;
+        double maxYBound = originY + rows * cellSize;
+        double tEnter = 0, tExit = Double.POSITIVE_INFINITY;
+        if ( dx == 0 ) {
+            if ( x < originX || x > maxXBound )
+                return;
+        } else {
+            double t1 = (originX - x) / dx, t2 = (maxXBound - x) / dx;
+            tEnter = Math.max( tEnter, Math.min( t1, t2 ) );
+            tExit = Math.min( tExit, Math.max( t1, t2 ) );
+        }
+        if ( dy == 0 ) {
+            if ( y < originY || y > maxYBound )
+                return;
+        } else {
+            double t1 = (originY - y) / dy, t2 = (maxYBound - y) / dy;
+            tEnter = Math.max( tEnter, Math.min( t1, t2 ) );
+            tExit = Math.min( tExit, Math.max( t1, t2 ) );
+        }
+        if ( tEnter > tExit )
+            return;
+
+        int col = clamp( (int) Math.floor( (x + dx * tEnter - originX) / cellSize ), columns );
+        int row = clamp( (int) Math.floor( (y + dy * tEnter - originY) / cellSize ), rows );
+        int stepX = (dx > 0) ? 1 : -1;
+        int stepY = (dy > 0) ? 1 : -1;
+        double tDeltaX = (dx == 0) ? Double.POSITIVE_INFINITY : cellSize / Math.abs( dx );
+        double tDeltaY = (dy == 0) ? Double.POSITIVE_INFINITY : cellSize / Math.abs( dy );
+        double tMaxX = (dx == 0) ? Double.POSITIVE_INFINITY : (originX + (col + (dx > 0 ? 1 : 0)) * cellSize - x) / dx;
+        double tMaxY = (dy == 0) ? Double.POSITIVE_INFINITY : (originY + (row + (dy > 0 ? 1 : 0)) * cellSize - y) / dy;
+
+        int[] mailbox = query.mailbox( lines.size );
+        int stamp = query.nextStamp();
+        while ( true ) {
+            int cell = row * columns + col;
+            for ( int k = cellStart[cell], end = cellStart[cell + 1]; k < end; k++ ) {
+                int i = cellItems[k];
+                if ( mailbox[i] != stamp ) {
+                    mailbox[i] = stamp;
+                    query.test( lines, i );
+                }
+            }
+            double cellExit = Math.min( tMaxX, tMaxY );
+            if ( query.getT() < cellExit || cellExit > tExit )
+                return;
+            if ( tMaxX < tMaxY ) {
+                col += stepX;
+                if ( col < 0 || col >= columns )
+                    return;
+                tMaxX += tDeltaX;
+            } else {
+                row += stepY;
+                if ( row < 0 || row >= rows )
+                    return;
+                tMaxY += tDeltaY;
+            }
+        }
+    }
+
+    // Packets leaving a cell diverge into different cells almost immediately, so each ray walks the grid on its own.
+    @Override
+    public void closestHitPacket( RayPacket packet ) {
+        RayQuery query = packet.query;
+        for ( int i = 0; i < packet.size; i++ ) {
+            query.reset( packet.x, packet.y, packet.dx[i], packet.dy[i], -1 );
+            closestHit( query );
+            packet.t[i] = query.getT();
+            packet.index[i] = query.getIndex();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package accumulation;
+
+/**
+ * Where one emitter thread adds up the light its photons splat, as red, green, blue and coverage per pixel. Each thread
+ * owns its buffer, so adding needs no synchronization and no two cores write to the same cache line, and the world sums
+ * the buffers of every thread when it renders. Only buffers whose {@link AccumulationType} is shared are added to by
+ * several threads at once.
+ */
+public interface AccumulationBuffer {
+    /**
+     * Adds light to a pixel. The caller keeps x and y inside the canvas.
+     */
+    void add( int x, int y, double red, double green, double blue, double coverage );
+
+    /**
+     * Adds the rows from fromRow up to toRow to target, laid out as four channels per pixel, row after row.
+     */
+    void addRowsTo( double[] target, int fromRow, int toRow );
+
+    /**
+     * Adds row y to row, which holds the four channels of every pixel in one row. Unlike {@link #addRowsTo} it needs no
+     * array the size of the canvas.
+     */
+    void addRowTo( int y, double[] row );
+
+    void clear();
+}
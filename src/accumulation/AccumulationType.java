@@ -0,0 +1,60 @@
+package accumulation;
+
+/**
+ * The kinds of {@link AccumulationBuffer} photons can be added to. {@link #DENSE}, {@link #TILED}, {@link #FLOAT} and
+ * {@link #SHARED_EXPONENT} give every thread a buffer of its own, FLOAT and SHARED_EXPONENT in less memory at some cost
+ * in precision. {@link #FIXED_POINT} and {@link #OFF_HEAP} have all threads share one, OFF_HEAP outside the Java heap.
+ */
+public enum AccumulationType {
+    DENSE, TILED, FIXED_POINT, FLOAT, SHARED_EXPONENT, OFF_HEAP;
+
+    public AccumulationBuffer create( int width, int height ) {
+        if ( !canHold( width, height ) )
+            throw new IllegalArgumentException( "A " + width + "x" + height + " canvas is too large for " + this
+                    + " accumulation" );
+        switch ( this ) {
+            case TILED:
+                return new TiledAccumulationBuffer( width, height );
+            case FIXED_POINT:
+                return new FixedPointAccumulationBuffer( width, height );
+            case FLOAT:
+                return new FloatAccumulationBuffer( width, height );
+            case SHARED_EXPONENT:
+                return new SharedExponentAccumulationBuffer( width, height );
+            case OFF_HEAP:
+                return new OffHeapAccumulationBuffer( width, height );
+            default:
+                return new DenseAccumulationBuffer( width, height );
+        }
+    }
+
+    // Whether one buffer of this kind can hold a canvas that large. Those kept in one array top out at 2^31 elements.
+    public boolean canHold( int width, int height ) {
+        switch ( this ) {
+            case TILED:
+            case OFF_HEAP:
+                return true;
+            case SHARED_EXPONENT:
+                return (long) width * height <= Integer.MAX_VALUE;
+            default:
+                return (long) width * height * 4 <= Integer.MAX_VALUE;
+        }
+    }
+
+    // Whether one buffer of this kind is safe to share between threads, so the world keeps a single one.
+    public boolean isShared() {
+        return this == FIXED_POINT || this == OFF_HEAP;
+    }
+
+    // Memory one buffer takes per pixel, for a tiled one once every tile is allocated.
+    public int getBytesPerPixel() {
+        switch ( this ) {
+            case FLOAT:
+                return 16;
+            case SHARED_EXPONENT:
+                return 8;
+            default:
+                return 32;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package accumulation;
+
+import java.util.Arrays;
+
+/**
+ * Every pixel of the canvas in one array, laid out like the buffer it is summed into.
+ */
+public class DenseAccumulationBuffer implements AccumulationBuffer {
+    private final int width;
+    private final double[] pixels;
+
+    public DenseAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        pixels = new double[width * height * 4];
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        int i = (y * width + x) * 4;
+        pixels[i] += red;
+        pixels[i + 1] += green;
+        pixels[i + 2] += blue;
+        pixels[i + 3] += coverage;
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        for ( int i = fromRow * width * 4; i < toRow * width * 4; i++ ) {
+            target[i] += pixels[i];
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        int offset = y * width * 4;
+        for ( int i = 0; i < width * 4; i++ ) {
+            row[i] += pixels[offset + i];
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill( pixels, 0 );
+    }
+}
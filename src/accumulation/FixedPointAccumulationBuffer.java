@@ -0,0 +1,58 @@
+package accumulation;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * One buffer every thread adds to at once, holding each channel as a count of 2^-24 units in a long. Adds are atomic,
+ * so nothing is lost to races without a copy of the canvas per thread, and since integer sums do not depend on their
+ * order the image comes out the same however the threads interleave.
+ * <p>
+ * The counts are a plain long array updated through a {@link VarHandle}, which keeps the atomic adds but leaves the
+ * array itself for clearing and reading without a call per element.
+ */
+public class FixedPointAccumulationBuffer implements AccumulationBuffer {
+    // Units per unit of light. Rounding to them is far below photon noise, and a pixel still holds over 5e11 of light.
+    private static final double SCALE = 1 << 24;
+    private static final double UNIT = 1 / SCALE;
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle( long[].class );
+    private final int width;
+    private final long[] cells;
+
+    public FixedPointAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        cells = new long[width * height * 4];
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        int i = (y * width + x) * 4;
+        CELLS.getAndAdd( cells, i, Math.round( red * SCALE ) );
+        CELLS.getAndAdd( cells, i + 1, Math.round( green * SCALE ) );
+        CELLS.getAndAdd( cells, i + 2, Math.round( blue * SCALE ) );
+        CELLS.getAndAdd( cells, i + 3, Math.round( coverage * SCALE ) );
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        // Threads may still be adding, so each count is read whole, though without ordering it against the others.
+        for ( int i = fromRow * width * 4; i < toRow * width * 4; i++ ) {
+            target[i] += (long) CELLS.getOpaque( cells, i ) * UNIT;
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        int offset = y * width * 4;
+        for ( int i = 0; i < width * 4; i++ ) {
+            row[i] += (long) CELLS.getOpaque( cells, offset + i ) * UNIT;
+        }
+    }
+
+    // Only called while nothing adds to the buffer.
+    @Override
+    public void clear() {
+        Arrays.fill( cells, 0 );
+    }
+}
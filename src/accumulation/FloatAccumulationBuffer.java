@@ -0,0 +1,47 @@
+package accumulation;
+
+import java.util.Arrays;
+
+/**
+ * A dense buffer in single precision, half the memory and memory traffic of {@link DenseAccumulationBuffer}. A float
+ * keeps 24 bits, so once a pixel holds some 2^23 times the light of one splat, further splats that small are rounded
+ * away. That is far past what a preview or a render of a large canvas reaches, but not an overnight render of a small one.
+ */
+public class FloatAccumulationBuffer implements AccumulationBuffer {
+    private final int width;
+    private final float[] pixels;
+
+    public FloatAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        pixels = new float[width * height * 4];
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        int i = (y * width + x) * 4;
+        pixels[i] += (float) red;
+        pixels[i + 1] += (float) green;
+        pixels[i + 2] += (float) blue;
+        pixels[i + 3] += (float) coverage;
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        for ( int i = fromRow * width * 4; i < toRow * width * 4; i++ ) {
+            target[i] += pixels[i];
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        int offset = y * width * 4;
+        for ( int i = 0; i < width * 4; i++ ) {
+            row[i] += pixels[offset + i];
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill( pixels, 0 );
+    }
+}
@@ -0,0 +1,121 @@
+package accumulation;
+
+/**
+ * Draws photon paths into an accumulation buffer as anti-aliased lines, using Xiaolin Wu's algorithm. A rasterizer can
+ * be limited to a band of rows, so that several of them can draw into the same buffer side by side.
+ */
+public class LineRasterizer {
+    private final AccumulationBuffer buffer;
+    private final int width, fromRow, toRow;
+
+    /**
+     * @param buffer  The buffer to draw into.
+     * @param width   The width of the canvas. Pixels left or right of it are dropped.
+     * @param fromRow The first row drawn into.
+     * @param toRow   The row after the last one drawn into.
+     */
+    public LineRasterizer( AccumulationBuffer buffer, int width, int fromRow, int toRow ) {
+        this.buffer = buffer;
+        this.width = width;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+    }
+
+    /**
+     * Adds a segment from (x0, y0) to (x1, y1), half a unit of coverage per unit of length, times weight.
+     */
+    public void draw( double x0, double y0, double x1, double y1, double red, double green, double blue, double weight ) {
+        boolean steep = Math.abs( y1 - y0 ) >= Math.abs( x1 - x0 );
+        double t;
+
+        if ( steep ) {
+            t = y0;
+            y0 = x0;
+            x0 = t;
+            t = y1;
+            y1 = x1;
+            x1 = t;
+        }
+        if ( x0 > x1 ) {
+            t = x1;
+            x1 = x0;
+            x0 = t;
+            t = y1;
+            y1 = y0;
+            y0 = t;
+        }
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double br = 0.5 * weight * Math.sqrt( dx * dx + dy * dy ) / dx;
+        double gradient = dy / dx;
+
+        double x05 = x0 + 0.5f;
+        int xend = (int) Math.floor( x05 );
+        double yend = y0 + gradient * (xend - x0);
+        double xgap = br * (1 - (x05 - xend));
+        double xpxl1 = xend;
+        double ypxl1 = Math.floor( yend );
+        if ( steep ) {
+            plotRay( (int) ypxl1, (int) xpxl1, (1 - (yend - ypxl1)) * xgap, red, green, blue );
+            plotRay( (int) ypxl1 + 1, (int) xpxl1, (yend - ypxl1) * xgap, red, green, blue );
+        } else {
+            plotRay( (int) xpxl1, (int) ypxl1, (1 - (yend - ypxl1)) * xgap, red, green, blue );
+            plotRay( (int) xpxl1, (int) ypxl1 + 1, (yend - ypxl1) * xgap, red, green, blue );
+        }
+        double intery = yend + gradient;
+
+        double x15 = x1 + 0.5f;
+        xend = (int) Math.floor( x15 );
+        yend = y1 + gradient * (xend - x1);
+        xgap = br * (x15 - xend);
+        double xpxl2 = xend;
+        double ypxl2 = Math.floor( yend );
+        if ( steep ) {
+            plotRay( (int) ypxl2, (int) xpxl2, (1 - (yend - ypxl2)) * xgap, red, green, blue );
+            plotRay( (int) ypxl2 + 1, (int) xpxl2, (yend - ypxl2) * xgap, red, green, blue );
+        } else {
+            plotRay( (int) xpxl2, (int) ypxl2, (1 - (yend - ypxl2)) * xgap, red, green, blue );
+            plotRay( (int) xpxl2, (int) ypxl2 + 1, (yend - ypxl2) * xgap, red, green, blue );
+        }
+        int fintery;
+        if ( steep ) {
+            // Along a steep line x runs over rows, so the rows outside this rasterizer's band are skipped outright.
+            // Each row's crossing is worked out from the start of the line, so it comes out the same in every band.
+            double start = intery;
+            double first = Math.max( xpxl1 + 1, fromRow - 1 );
+            double last = Math.min( xpxl2 - 1, toRow );
+            for ( double x = first; x <= last; x++ ) {
+                intery = start + gradient * (x - xpxl1 - 1);
+                fintery = (int) Math.floor( intery );
+                plotRay( fintery, (int) x, br * (1 - (intery - fintery)), red, green, blue );
+                plotRay( fintery + 1, (int) x, br * (intery - fintery), red, green, blue );
+            }
+        } else {
+            // Along a shallow line the rows follow from the gradient, so the columns whose rows miss the band, and those
+            // off the canvas, are skipped outright as well, with a column to spare either side.
+            double start = intery;
+            double first = Math.max( xpxl1 + 1, 0 );
+            double last = Math.min( xpxl2 - 1, width - 1 );
+            if ( gradient == 0 ) {
+                if ( start < fromRow - 2 || start > toRow + 1 )
+                    return;
+            } else {
+                double enter = xpxl1 + 1 + (fromRow - 1 - start) / gradient;
+                double leave = xpxl1 + 1 + (toRow - start) / gradient;
+                first = Math.max( first, Math.ceil( Math.min( enter, leave ) ) - 1 );
+                last = Math.min( last, Math.floor( Math.max( enter, leave ) ) + 1 );
+            }
+            for ( double x = first; x <= last; x++ ) {
+                intery = start + gradient * (x - xpxl1 - 1);
+                fintery = (int) Math.floor( intery );
+                plotRay( (int) x, fintery, br * (1 - (intery - fintery)), red, green, blue );
+                plotRay( (int) x, fintery + 1, br * (intery - fintery), red, green, blue );
+            }
+        }
+    }
+
+    private void plotRay( int x, int y, double c, double red, double green, double blue ) {
+        if ( x >= 0 && x < width && y >= fromRow && y < toRow )
+            buffer.add( x, y, c * red, c * green, c * blue, c );
+    }
+}
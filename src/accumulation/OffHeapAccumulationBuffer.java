@@ -0,0 +1,126 @@
+package accumulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * One dense buffer every thread adds to at once, kept outside the Java heap, in direct memory or in a file mapped into
+ * memory, so a huge canvas neither runs into the 2^31 element limit of arrays nor leaves the garbage collector a huge
+ * array to scan and copy. The pixels are split into chunks of whole rows, each under a gigabyte, so no index into a
+ * chunk leaves the range of an int and the canvas is only limited by memory or disk.
+ * <p>
+ * Each channel is added with a compare and swap, so no light is lost between threads, but unlike
+ * {@link FixedPointAccumulationBuffer} the sums are in floating point and depend a little on the order of the adds.
+ * Direct memory is only given back once the buffer is garbage collected.
+ */
+public class OffHeapAccumulationBuffer implements AccumulationBuffer {
+    // A ByteBuffer is indexed by int, so chunks stay below this as far as whole rows allow.
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final int PIXEL_BYTES = 4 * 8;
+    private static final VarHandle DOUBLES = MethodHandles.byteBufferViewVarHandle( double[].class,
+            ByteOrder.nativeOrder() );
+    private final int width, height, rowsPerChunk;
+    private final ByteBuffer[] chunks;
+
+    // Allocates the buffer in direct memory.
+    public OffHeapAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        this.height = height;
+        rowsPerChunk = rowsPerChunk( width );
+        chunks = new ByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+        for ( int c = 0; c < chunks.length; c++ ) {
+            chunks[c] = ByteBuffer.allocateDirect( (int) chunkBytes( c ) ).order( ByteOrder.nativeOrder() );
+        }
+    }
+
+    /**
+     * Maps the buffer onto a file, which is created or grown to fit. Whatever light the file already holds is kept.
+     *
+     * @param file The file to keep the pixels in, in the machine's native byte order.
+     */
+    public OffHeapAccumulationBuffer( int width, int height, File file ) throws IOException {
+        this.width = width;
+        this.height = height;
+        rowsPerChunk = rowsPerChunk( width );
+        chunks = new ByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+        RandomAccessFile access = new RandomAccessFile( file, "rw" );
+        try {
+            FileChannel channel = access.getChannel();
+            for ( int c = 0; c < chunks.length; c++ ) {
+                // The mappings stay valid after the file is closed.
+                chunks[c] = channel.map( FileChannel.MapMode.READ_WRITE, (long) c * rowsPerChunk * width * PIXEL_BYTES,
+                        chunkBytes( c ) ).order( ByteOrder.nativeOrder() );
+            }
+        } finally {
+            access.close();
+        }
+    }
+
+    private static int rowsPerChunk( int width ) {
+        return (int) Math.max( 1, MAX_CHUNK_BYTES / ((long) width * PIXEL_BYTES) );
+    }
+
+    private long chunkBytes( int chunk ) {
+        int rows = Math.min( rowsPerChunk, height - chunk * rowsPerChunk );
+        return (long) rows * width * PIXEL_BYTES;
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        ByteBuffer chunk = chunks[y / rowsPerChunk];
+        int i = ((y % rowsPerChunk) * width + x) * PIXEL_BYTES;
+        add( chunk, i, red );
+        add( chunk, i + 8, green );
+        add( chunk, i + 16, blue );
+        add( chunk, i + 24, coverage );
+    }
+
+    private static void add( ByteBuffer chunk, int index, double value ) {
+        // Colored lights leave some channels at zero, which need no swap.
+        if ( value == 0 )
+            return;
+        double old;
+        do {
+            old = (double) DOUBLES.getVolatile( chunk, index );
+        } while ( !DOUBLES.weakCompareAndSet( chunk, index, old, old + value ) );
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        for ( int y = fromRow; y < toRow; y++ ) {
+            ByteBuffer chunk = chunks[y / rowsPerChunk];
+            int i = (y % rowsPerChunk) * width * PIXEL_BYTES;
+            int j = y * width * 4;
+            for ( int k = 0; k < width * 4; k++ ) {
+                target[j + k] += chunk.getDouble( i + k * 8 );
+            }
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        ByteBuffer chunk = chunks[y / rowsPerChunk];
+        int i = (y % rowsPerChunk) * width * PIXEL_BYTES;
+        for ( int k = 0; k < width * 4; k++ ) {
+            row[k] += chunk.getDouble( i + k * 8 );
+        }
+    }
+
+    @Override
+    public void clear() {
+        byte[] zeros = new byte[width * PIXEL_BYTES];
+        for ( ByteBuffer chunk : chunks ) {
+            ByteBuffer view = chunk.duplicate();
+            view.clear();
+            while ( view.hasRemaining() ) {
+                view.put( zeros, 0, Math.min( zeros.length, view.remaining() ) );
+            }
+        }
+    }
+}
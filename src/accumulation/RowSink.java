@@ -0,0 +1,15 @@
+package accumulation;
+
+import java.io.IOException;
+
+/**
+ * Takes the light on a canvas one row at a time, so a canvas larger than any one array can still be read out, for
+ * instance straight into a file.
+ */
+public interface RowSink {
+    /**
+     * @param y   The row, counted from the top.
+     * @param row Red, green, blue and coverage for every pixel of the row. Reused for the next row.
+     */
+    void row( int y, double[] row ) throws IOException;
+}
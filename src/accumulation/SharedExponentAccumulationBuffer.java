@@ -0,0 +1,112 @@
+package accumulation;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Packs each pixel into one long, a quarter of the memory of {@link DenseAccumulationBuffer}: an 8 bit exponent shared by
+ * the four channels and a 14 bit mantissa for each, like the RGB9E5 texture format. Every add rounds the new values up
+ * or down at random, in proportion to how close they are to each, so splats far smaller than the last bit still add up
+ * to the right amount on average. The rounding adds noise, so this is meant for previews of large canvases.
+ */
+public class SharedExponentAccumulationBuffer implements AccumulationBuffer {
+    private static final int MANTISSA_BITS = 14;
+    private static final long MANTISSA_MASK = (1 << MANTISSA_BITS) - 1;
+    private static final int EXPONENT_BITS = 8;
+    private static final int EXPONENT_BIAS = 1 << (EXPONENT_BITS - 1);
+    private static final long EXPONENT_MASK = (1 << EXPONENT_BITS) - 1;
+    private final int width;
+    // The exponent in the low bits, then the mantissas of red, green, blue and coverage.
+    private final long[] pixels;
+
+    public SharedExponentAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        pixels = new long[width * height];
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        // Unpacked into locals rather than a scratch array, so threads drawing their own rows can share the buffer.
+        int i = y * width + x;
+        long old = pixels[i];
+        double unit = unit( old );
+        pixels[i] = pack( mantissa( old, 0 ) * unit + red, mantissa( old, 1 ) * unit + green,
+                mantissa( old, 2 ) * unit + blue, mantissa( old, 3 ) * unit + coverage,
+                ThreadLocalRandom.current().nextLong() );
+    }
+
+    // The channels are stored in units of 2^(exponent - MANTISSA_BITS), with the exponent picked so the largest fits.
+    private static long pack( double red, double green, double blue, double coverage, long random ) {
+        double max = Math.max( Math.max( red, green ), Math.max( blue, coverage ) );
+        if ( !(max > 0) )
+            return 0;
+        int exponent = Math.max( Math.getExponent( max ) + 1, 1 - EXPONENT_BIAS );
+        while ( true ) {
+            if ( exponent + EXPONENT_BIAS > EXPONENT_MASK )
+                exponent = (int) EXPONENT_MASK - EXPONENT_BIAS;
+            double scale = Math.scalb( 1.0, MANTISSA_BITS - exponent );
+            // 16 random bits per channel decide which way it is rounded.
+            long r = round( red * scale, random );
+            long g = round( green * scale, random >>> 16 );
+            long b = round( blue * scale, random >>> 32 );
+            long c = round( coverage * scale, random >>> 48 );
+            // Rounding the largest channel up can carry it past the mantissa, and the next exponent always fits it.
+            if ( Math.max( Math.max( r, g ), Math.max( b, c ) ) <= MANTISSA_MASK || exponent + EXPONENT_BIAS >= EXPONENT_MASK ) {
+                return (exponent + EXPONENT_BIAS)
+                        | Math.min( r, MANTISSA_MASK ) << EXPONENT_BITS
+                        | Math.min( g, MANTISSA_MASK ) << (EXPONENT_BITS + MANTISSA_BITS)
+                        | Math.min( b, MANTISSA_MASK ) << (EXPONENT_BITS + MANTISSA_BITS * 2)
+                        | Math.min( c, MANTISSA_MASK ) << (EXPONENT_BITS + MANTISSA_BITS * 3);
+            }
+            exponent++;
+        }
+    }
+
+    private static long round( double value, long random ) {
+        return (long) Math.floor( Math.max( 0, value ) + (random & 0xFFFF) / 65536.0 );
+    }
+
+    private static double unit( long packed ) {
+        return Math.scalb( 1.0, (int) (packed & EXPONENT_MASK) - EXPONENT_BIAS - MANTISSA_BITS );
+    }
+
+    private static long mantissa( long packed, int channel ) {
+        return (packed >>> (EXPONENT_BITS + MANTISSA_BITS * channel)) & MANTISSA_MASK;
+    }
+
+    private static void unpack( long packed, double[] values ) {
+        double unit = unit( packed );
+        for ( int c = 0; c < 4; c++ ) {
+            values[c] = mantissa( packed, c ) * unit;
+        }
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        double[] values = new double[4];
+        for ( int i = fromRow * width; i < toRow * width; i++ ) {
+            unpack( pixels[i], values );
+            target[i * 4] += values[0];
+            target[i * 4 + 1] += values[1];
+            target[i * 4 + 2] += values[2];
+            target[i * 4 + 3] += values[3];
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        double[] values = new double[4];
+        for ( int x = 0; x < width; x++ ) {
+            unpack( pixels[y * width + x], values );
+            row[x * 4] += values[0];
+            row[x * 4 + 1] += values[1];
+            row[x * 4 + 2] += values[2];
+            row[x * 4 + 3] += values[3];
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill( pixels, 0 );
+    }
+}
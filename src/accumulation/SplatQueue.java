@@ -0,0 +1,100 @@
+package accumulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of segments waiting to be drawn, written by one tracer thread and read by one rasterizer thread. Each
+ * side only ever advances its own index, and publishes it with an ordered write, so neither side takes a lock.
+ */
+public class SplatQueue {
+    // Doubles per segment: both endpoints, the color and the weight.
+    private static final int FIELDS = 8;
+    private final double[] segments;
+    private final int mask;
+    // The next segment the producer writes, and the next one the consumer reads.
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    // The producer's last look at tail, so it only reads the consumer's index when the ring seems full.
+    private long cachedTail = 0;
+    // Photons the consumer has passed the markers of, so every segment queued before them is drawn.
+    private final AtomicLong rays = new AtomicLong();
+
+    /**
+     * @param capacity How many segments the queue holds, rounded up to a power of two.
+     */
+    public SplatQueue( int capacity ) {
+        int size = Integer.highestOneBit( Math.max( 2, capacity ) - 1 ) << 1;
+        segments = new double[size * FIELDS];
+        mask = size - 1;
+    }
+
+    /**
+     * Appends a segment. Only the producer calls this.
+     *
+     * @return Whether there was room for it.
+     */
+    public boolean offer( double x0, double y0, double x1, double y1, double red, double green, double blue, double weight ) {
+        long h = head.get();
+        if ( h - cachedTail > mask ) {
+            cachedTail = tail.get();
+            if ( h - cachedTail > mask )
+                return false;
+        }
+        int i = (int) (h & mask) * FIELDS;
+        segments[i] = x0;
+        segments[i + 1] = y0;
+        segments[i + 2] = x1;
+        segments[i + 3] = y1;
+        segments[i + 4] = red;
+        segments[i + 5] = green;
+        segments[i + 6] = blue;
+        segments[i + 7] = weight;
+        head.lazySet( h + 1 );
+        return true;
+    }
+
+    /**
+     * Appends a marker that counts rays photons once the consumer reaches it. Only the producer calls this.
+     *
+     * @return Whether there was room for it.
+     */
+    public boolean offerRays( long rays ) {
+        // A segment can never start at NaN, so that marks the entry, with the count in place of the weight.
+        return offer( Double.NaN, 0, 0, 0, 0, 0, 0, rays );
+    }
+
+    /**
+     * Draws up to max queued segments. Only the consumer calls this.
+     *
+     * @return How many segments were drawn.
+     */
+    public int drain( LineRasterizer rasterizer, int max ) {
+        long t = tail.get();
+        int count = (int) Math.min( max, head.get() - t );
+        for ( int k = 0; k < count; k++ ) {
+            int i = (int) ((t + k) & mask) * FIELDS;
+            if ( Double.isNaN( segments[i] ) ) {
+                rays.lazySet( rays.get() + (long) segments[i + 7] );
+                continue;
+            }
+            rasterizer.draw( segments[i], segments[i + 1], segments[i + 2], segments[i + 3], segments[i + 4], segments[i + 5],
+                    segments[i + 6], segments[i + 7] );
+        }
+        // Only released once drawn, so a producer cannot overwrite a segment still being read.
+        tail.lazySet( t + count );
+        return count;
+    }
+
+    // Photons counted by markers the consumer has reached.
+    public long getRays() {
+        return rays.get();
+    }
+
+    // Only called while nothing is queued.
+    public void clearRays() {
+        rays.set( 0 );
+    }
+
+    public long size() {
+        return head.get() - tail.get();
+    }
+}
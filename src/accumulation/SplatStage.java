@@ -0,0 +1,263 @@
+package accumulation;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes drawing the photon paths off the tracer threads. The canvas is cut into one band of rows per rasterizer thread,
+ * every tracer gets a {@link SplatQueue} per band, and a segment is queued to every band it crosses. Each rasterizer
+ * draws only its own rows of one shared buffer, so rasterizers need no synchronization either, and each keeps its band
+ * of the buffer in its own cache.
+ * <p>
+ * A tracer whose queue is full waits for the rasterizer to catch up, and the time it waits is counted, as is the time
+ * rasterizers spend with nothing to draw, so the ratio of tracer to rasterizer threads can be tuned. A rasterizer with
+ * nothing to draw waits a little longer each time, then sleeps until a tracer queues to it again, so a paused world
+ * costs nothing.
+ */
+public class SplatStage {
+    public static final int QUEUE_CAPACITY = 1 << 12;
+    // Segments a rasterizer draws from one queue before moving on to the next.
+    private static final int DRAIN_BATCH = 256;
+    private static final long IDLE_PARK_NANOS = 50000;
+    // Empty rounds, each waiting twice as long as the last, before a rasterizer sleeps until woken.
+    private static final int IDLE_BACKOFFS = 5;
+    private final int height, bands;
+    private final AccumulationBuffer buffer;
+    private final Thread[] rasterizers;
+    private final Object registration = new Object();
+    // Every producer's queues, one per band. Replaced rather than modified, so rasterizers can read it without a lock.
+    private volatile SplatQueue[][] producers = new SplatQueue[0][];
+    private volatile boolean running = true;
+    // 1 for each rasterizer that is sleeping, or about to, until a tracer wakes it.
+    private final AtomicIntegerArray sleeping;
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong idleNanos = new AtomicLong();
+
+    /**
+     * Starts the rasterizer threads.
+     *
+     * @param buffer      The buffer the rasterizers draw into.
+     * @param width       The width of the canvas.
+     * @param height      The height of the canvas.
+     * @param rasterizers How many rasterizer threads, and so bands, to use.
+     */
+    public SplatStage( AccumulationBuffer buffer, int width, int height, int rasterizers ) {
+        this.buffer = buffer;
+        this.height = height;
+        this.bands = Math.max( 1, Math.min( rasterizers, height ) );
+        this.rasterizers = new Thread[bands];
+        sleeping = new AtomicIntegerArray( bands );
+        for ( int b = 0; b < bands; b++ ) {
+            final int band = b;
+            final LineRasterizer rasterizer = new LineRasterizer( buffer, width, b * height / bands, (b + 1) * height / bands );
+            this.rasterizers[b] = new Thread( "Rasterizer " + b ) {
+                @Override
+                public void run() {
+                    rasterize( band, rasterizer );
+                }
+            };
+            this.rasterizers[b].setDaemon( true );
+            this.rasterizers[b].start();
+        }
+    }
+
+    private void rasterize( int band, LineRasterizer rasterizer ) {
+        int idle = 0;
+        while ( running ) {
+            int drawn = 0;
+            for ( SplatQueue[] queues : producers ) {
+                drawn += queues[band].drain( rasterizer, DRAIN_BATCH );
+            }
+            if ( drawn > 0 ) {
+                idle = 0;
+                continue;
+            }
+            long start = System.nanoTime();
+            if ( idle < IDLE_BACKOFFS ) {
+                LockSupport.parkNanos( IDLE_PARK_NANOS << idle );
+                idle++;
+            } else {
+                // Announced before the last look at the queues, so a tracer queuing after that look sees it and wakes us.
+                sleeping.set( band, 1 );
+                if ( running && getQueueDepth( band ) == 0 )
+                    LockSupport.park( this );
+                sleeping.set( band, 0 );
+            }
+            idleNanos.addAndGet( System.nanoTime() - start );
+        }
+    }
+
+    private long getQueueDepth( int band ) {
+        long depth = 0;
+        for ( SplatQueue[] queues : producers ) {
+            depth += queues[band].size();
+        }
+        return depth;
+    }
+
+    // Wakes every sleeping rasterizer. Called after queuing, so the fence keeps the queued segments from being seen
+    // after the rasterizer's flag is read.
+    private void wake() {
+        VarHandle.fullFence();
+        for ( int b = 0; b < bands; b++ ) {
+            if ( sleeping.get( b ) != 0 && sleeping.compareAndSet( b, 1, 0 ) )
+                LockSupport.unpark( rasterizers[b] );
+        }
+    }
+
+    /**
+     * @return A new set of queues, one per band, for a tracer thread to pass to {@link #splat}.
+     */
+    public SplatQueue[] register() {
+        SplatQueue[] queues = new SplatQueue[bands];
+        for ( int b = 0; b < bands; b++ ) {
+            queues[b] = new SplatQueue( QUEUE_CAPACITY );
+        }
+        synchronized ( registration ) {
+            SplatQueue[][] next = Arrays.copyOf( producers, producers.length + 1 );
+            next[producers.length] = queues;
+            producers = next;
+        }
+        return queues;
+    }
+
+    /**
+     * Queues a segment to every band it may touch, waiting for room where a queue is full. A rasterizer that went to
+     * sleep only starts on it once the tick is ended with {@link #count} or the stage is flushed.
+     *
+     * @param queues The calling thread's queues, from {@link #register()}.
+     */
+    public void splat( SplatQueue[] queues, double x0, double y0, double x1, double y1, double red, double green, double blue,
+                       double weight ) {
+        // The line's anti-aliasing reaches one row past either end.
+        int first = band( Math.min( y0, y1 ) - 1 );
+        int last = band( Math.max( y0, y1 ) + 2 );
+        for ( int b = first; b <= last; b++ ) {
+            if ( queues[b].offer( x0, y0, x1, y1, red, green, blue, weight ) )
+                continue;
+            long start = System.nanoTime();
+            while ( !queues[b].offer( x0, y0, x1, y1, red, green, blue, weight ) ) {
+                wake();
+                Thread.yield();
+            }
+            stallNanos.addAndGet( System.nanoTime() - start );
+        }
+    }
+
+    /**
+     * Queues rays photons to be counted behind the segments already queued, in every band, so they are only counted
+     * once all of their segments are drawn.
+     *
+     * @param queues The calling thread's queues, from {@link #register()}.
+     */
+    public void count( SplatQueue[] queues, long rays ) {
+        for ( SplatQueue queue : queues ) {
+            if ( queue.offerRays( rays ) )
+                continue;
+            long start = System.nanoTime();
+            while ( !queue.offerRays( rays ) ) {
+                wake();
+                Thread.yield();
+            }
+            stallNanos.addAndGet( System.nanoTime() - start );
+        }
+        // Once per tick rather than per segment, so a sleeping rasterizer is at most a tick late to start.
+        wake();
+    }
+
+    // Photons every band has drawn all the segments of. Each tracer's counts reach every band in the order it queued
+    // them, so the band furthest behind tells how many of its photons are complete.
+    public long getRayCount() {
+        long rays = 0;
+        for ( SplatQueue[] queues : producers ) {
+            long drawn = Long.MAX_VALUE;
+            for ( SplatQueue queue : queues ) {
+                drawn = Math.min( drawn, queue.getRays() );
+            }
+            rays += drawn;
+        }
+        return rays;
+    }
+
+    // Photons whose segments the band holding row y has drawn, which is exactly what that row's light is the sum of.
+    public long getRayCount( int y ) {
+        int band = band( y );
+        long rays = 0;
+        for ( SplatQueue[] queues : producers ) {
+            rays += queues[band].getRays();
+        }
+        return rays;
+    }
+
+    // Only called once flushed, with the tracers paused.
+    public void clearRayCount() {
+        for ( SplatQueue[] queues : producers ) {
+            for ( SplatQueue queue : queues ) {
+                queue.clearRays();
+            }
+        }
+    }
+
+    private int band( double y ) {
+        if ( y <= 0 )
+            return 0;
+        if ( y >= height )
+            return bands - 1;
+        // Band b starts at row floor(b * height / bands), so this is the last band starting at or before row y.
+        return (int) ((((long) y + 1) * bands - 1) / height);
+    }
+
+    // Waits until every queued segment has been drawn. The tracers must be paused, or it may never return.
+    public void flush() {
+        while ( getQueueDepth() > 0 ) {
+            wake();
+            Thread.yield();
+        }
+    }
+
+    // Draws what is queued, then stops the rasterizer threads.
+    public void shutdown() {
+        flush();
+        running = false;
+        for ( Thread rasterizer : rasterizers ) {
+            LockSupport.unpark( rasterizer );
+        }
+    }
+
+    public AccumulationBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getRasterizerCount() {
+        return bands;
+    }
+
+    // Segments queued but not drawn yet, over every queue.
+    public long getQueueDepth() {
+        long depth = 0;
+        for ( SplatQueue[] queues : producers ) {
+            for ( SplatQueue queue : queues ) {
+                depth += queue.size();
+            }
+        }
+        return depth;
+    }
+
+    // Total time tracers have spent waiting for room in a full queue.
+    public long getStallNanos() {
+        return stallNanos.get();
+    }
+
+    // Total time rasterizers have spent waiting for segments.
+    public long getIdleNanos() {
+        return idleNanos.get();
+    }
+
+    public void resetMetrics() {
+        stallNanos.set( 0 );
+        idleNanos.set( 0 );
+    }
+}
@@ -0,0 +1,83 @@
+package accumulation;
+
+/**
+ * The canvas cut into square tiles that are only allocated once a photon reaches them, so threads whose photons stay in
+ * one part of the canvas, or a canvas much larger than the lit region, cost less memory than a dense buffer.
+ */
+public class TiledAccumulationBuffer implements AccumulationBuffer {
+    // Tiles are 2^TILE_SHIFT pixels on a side.
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private final int width;
+    private final int tilesX;
+    private final double[][] tiles;
+
+    public TiledAccumulationBuffer( int width, int height ) {
+        this.width = width;
+        tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tiles = new double[tilesX * ((height + TILE_SIZE - 1) >> TILE_SHIFT)][];
+    }
+
+    @Override
+    public void add( int x, int y, double red, double green, double blue, double coverage ) {
+        int t = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        double[] tile = tiles[t];
+        if ( tile == null )
+            tile = allocate( t );
+        int i = (((y & (TILE_SIZE - 1)) << TILE_SHIFT) + (x & (TILE_SIZE - 1))) * 4;
+        tile[i] += red;
+        tile[i + 1] += green;
+        tile[i + 2] += blue;
+        tile[i + 3] += coverage;
+    }
+
+    // Threads drawing their own bands of rows into one buffer can share a tile, so only one of them may allocate it.
+    private synchronized double[] allocate( int t ) {
+        if ( tiles[t] == null )
+            tiles[t] = new double[TILE_SIZE * TILE_SIZE * 4];
+        return tiles[t];
+    }
+
+    @Override
+    public void addRowsTo( double[] target, int fromRow, int toRow ) {
+        for ( int y = fromRow; y < toRow; y++ ) {
+            int row = (y >> TILE_SHIFT) * tilesX;
+            int offset = ((y & (TILE_SIZE - 1)) << TILE_SHIFT) * 4;
+            for ( int tx = 0; tx < tilesX; tx++ ) {
+                double[] tile = tiles[row + tx];
+                if ( tile == null )
+                    continue;
+                int x0 = tx << TILE_SHIFT;
+                int count = Math.min( TILE_SIZE, width - x0 ) * 4;
+                int j = (y * width + x0) * 4;
+                for ( int i = 0; i < count; i++ ) {
+                    target[j + i] += tile[offset + i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addRowTo( int y, double[] row ) {
+        int first = (y >> TILE_SHIFT) * tilesX;
+        int offset = ((y & (TILE_SIZE - 1)) << TILE_SHIFT) * 4;
+        for ( int tx = 0; tx < tilesX; tx++ ) {
+            double[] tile = tiles[first + tx];
+            if ( tile == null )
+                continue;
+            int x0 = tx << TILE_SHIFT;
+            int count = Math.min( TILE_SIZE, width - x0 ) * 4;
+            for ( int i = 0; i < count; i++ ) {
+                row[x0 * 4 + i] += tile[offset + i];
+            }
+        }
+    }
+
+    // Drops every tile, so memory is only taken again where photons land after the clear.
+    @Override
+    public void clear() {
+        for ( int t = 0; t < tiles.length; t++ ) {
+            tiles[t] = null;
+        }
+    }
+}
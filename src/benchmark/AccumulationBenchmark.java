@@ -0,0 +1,99 @@
+package benchmark;
+
+import accumulation.AccumulationBuffer;
+import accumulation.AccumulationType;
+import accumulation.LineRasterizer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws the same random segments into per-thread double buffers, into the compact per-thread formats and into one
+ * shared buffer, off the heap or in fixed point, at 8, 16 and 32 threads, and times both the drawing and the sum into
+ * one image that rendering does. The hash of the summed image shows which results depend on how the segments were split
+ * between threads.
+ * <p>
+ * Usage: AccumulationBenchmark [width height segments]
+ */
+public class AccumulationBenchmark {
+    private static final int[] THREADS = { 8, 16, 32 };
+    private static final AccumulationType[] TYPES = { AccumulationType.DENSE, AccumulationType.FLOAT,
+            AccumulationType.SHARED_EXPONENT, AccumulationType.OFF_HEAP, AccumulationType.FIXED_POINT };
+    // Each case is run this many times and the fastest run kept.
+    private static final int RUNS = 3;
+
+    public static void main( String[] args ) throws InterruptedException {
+        int width = (args.length > 1) ? Integer.parseInt( args[0] ) : 1000;
+        int height = (args.length > 1) ? Integer.parseInt( args[1] ) : 600;
+        int segments = (args.length > 2) ? Integer.parseInt( args[2] ) : 50000;
+        double[] ends = new double[segments * 4];
+        Random random = new Random( 1 );
+        for ( int i = 0; i < segments; i++ ) {
+            ends[i * 4] = random.nextDouble() * width;
+            ends[i * 4 + 1] = random.nextDouble() * height;
+            ends[i * 4 + 2] = random.nextDouble() * width;
+            ends[i * 4 + 3] = random.nextDouble() * height;
+        }
+        System.out.println( "AccumulationBenchmark: " + width + "x" + height + ", " + segments + " segments, "
+                + Runtime.getRuntime().availableProcessors() + " cores" );
+        double[] image = new double[width * height * 4];
+        // Once through everything first, so the timed runs are compiled.
+        for ( AccumulationType type : TYPES ) {
+            run( type, THREADS[0], ends, width, height, image );
+        }
+        for ( int threads : THREADS ) {
+            for ( AccumulationType type : TYPES ) {
+                long draw = Long.MAX_VALUE, reduce = Long.MAX_VALUE;
+                for ( int r = 0; r < RUNS; r++ ) {
+                    long[] times = run( type, threads, ends, width, height, image );
+                    draw = Math.min( draw, times[0] );
+                    reduce = Math.min( reduce, times[1] );
+                }
+                long bytes = (long) width * height * type.getBytesPerPixel() * (type.isShared() ? 1 : threads);
+                System.out.println( String.format( "%2d threads %-15s draw %8.1f ms  reduce %7.1f ms  buffers %6d MB  hash %08x",
+                        threads, type, draw / 1e6, reduce / 1e6, bytes >> 20, Arrays.hashCode( image ) ) );
+            }
+        }
+    }
+
+    // Returns the nanoseconds spent drawing and summing, and leaves the summed image in image.
+    private static long[] run( AccumulationType type, int threads, final double[] ends, final int width, int height,
+                               double[] image ) throws InterruptedException {
+        final AccumulationBuffer[] buffers = new AccumulationBuffer[threads];
+        AccumulationBuffer shared = type.isShared() ? type.create( width, height ) : null;
+        for ( int t = 0; t < threads; t++ ) {
+            buffers[t] = (shared != null) ? shared : type.create( width, height );
+        }
+        final int segments = ends.length / 4;
+        Thread[] workers = new Thread[threads];
+        for ( int t = 0; t < threads; t++ ) {
+            final LineRasterizer rasterizer = new LineRasterizer( buffers[t], width, 0, height );
+            final int from = (int) ((long) t * segments / threads), to = (int) ((long) (t + 1) * segments / threads);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for ( int i = from; i < to; i++ ) {
+                        rasterizer.draw( ends[i * 4], ends[i * 4 + 1], ends[i * 4 + 2], ends[i * 4 + 3], 1, 0.5, 0.25, 1 );
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for ( Thread worker : workers ) {
+            worker.start();
+        }
+        for ( Thread worker : workers ) {
+            worker.join();
+        }
+        long drawn = System.nanoTime();
+        Arrays.fill( image, 0 );
+        if ( shared != null ) {
+            shared.addRowsTo( image, 0, height );
+        } else {
+            for ( AccumulationBuffer buffer : buffers ) {
+                buffer.addRowsTo( image, 0, height );
+            }
+        }
+        return new long[]{ drawn - start, System.nanoTime() - drawn };
+    }
+}
@@ -0,0 +1,60 @@
+package entities;
+
+/**
+ * A curved surface photons can hit. Unlike {@link Line}s, curves are intersected analytically, so a lens or a mirror
+ * costs one test instead of one per segment of a polyline approximating it.
+ */
+public abstract class Curve {
+    // Hits closer than this to the ray's origin are the surface the photon is leaving.
+    protected static final double SELF_HIT_EPSILON = 1e-6;
+    private double diffuse = 1;
+    private double reflect = 0;
+    private double transmit = 0;
+
+    protected Curve( double diffuse, double reflect, double transmit ) {
+        if ( diffuse + reflect + transmit > 1 ) {
+            System.out.println( this + ": Fields not valid" );
+        } else {
+            this.diffuse = (diffuse < 0) ? 0 : (diffuse > 1) ? 1 : diffuse;
+            this.reflect = (reflect < 0) ? 0 : (reflect > 1) ? 1 : reflect;
+            this.transmit = (transmit < 0) ? 0 : (transmit > 1) ? 1 : transmit;
+        }
+    }
+
+    /**
+     * Finds where a ray first crosses the curve.
+     *
+     * @param x      The x coordinate of the ray's origin.
+     * @param y      The y coordinate of the ray's origin.
+     * @param dx     The x component of the ray's unit direction.
+     * @param dy     The y component of the ray's unit direction.
+     * @param maxT   Hits at or past this distance are ignored.
+     * @param normal Receives the unit normal at the hit, and is left alone when there is none.
+     * @return The distance to the hit, or positive infinity if there is none closer than maxT.
+     */
+    public abstract double intersect( double x, double y, double dx, double dy, double maxT, double[] normal );
+
+    public double getDiffuse() {
+        return diffuse;
+    }
+
+    public void setDiffuse( double diffuse ) {
+        this.diffuse = diffuse;
+    }
+
+    public double getReflect() {
+        return reflect;
+    }
+
+    public void setReflect( double reflect ) {
+        this.reflect = reflect;
+    }
+
+    public double getTransmit() {
+        return transmit;
+    }
+
+    public void setTransmit( double transmit ) {
+        this.transmit = transmit;
+    }
+}
@@ -0,0 +1,56 @@
+package entities;
+
+import java.awt.geom.Ellipse2D;
+
+/**
+ * An axis aligned ellipse, such as a circular lens or the cross section of a rod.
+ */
+public class Ellipse extends Curve {
+    private final double centerX, centerY;
+    private final double invA2, invB2;
+    private final Ellipse2D shape;
+
+    public Ellipse( Ellipse2D shape, double diffuse, double reflect, double transmit ) {
+        super( diffuse, reflect, transmit );
+        this.shape = (Ellipse2D) shape.clone();
+        centerX = shape.getCenterX();
+        centerY = shape.getCenterY();
+        double a = shape.getWidth() / 2;
+        double b = shape.getHeight() / 2;
+        invA2 = 1 / (a * a);
+        invB2 = 1 / (b * b);
+    }
+
+    @Override
+    public double intersect( double x, double y, double dx, double dy, double maxT, double[] normal ) {
+        if ( shape.isEmpty() )
+            return Double.POSITIVE_INFINITY;
+        double px = x - centerX;
+        double py = y - centerY;
+        // (px + t dx)^2 / a^2 + (py + t dy)^2 / b^2 = 1
+        double qa = dx * dx * invA2 + dy * dy * invB2;
+        double qb = 2 * (px * dx * invA2 + py * dy * invB2);
+        double qc = px * px * invA2 + py * py * invB2 - 1;
+        double discriminant = qb * qb - 4 * qa * qc;
+        if ( discriminant < 0 )
+            return Double.POSITIVE_INFINITY;
+        double q = -0.5 * (qb + Math.copySign( Math.sqrt( discriminant ), qb ));
+        double t1 = q / qa;
+        double t2 = (q == 0) ? t1 : qc / q;
+        double t = Math.min( t1, t2 );
+        if ( t <= SELF_HIT_EPSILON )
+            t = Math.max( t1, t2 );
+        if ( t <= SELF_HIT_EPSILON || t >= maxT )
+            return Double.POSITIVE_INFINITY;
+        double nx = (px + t * dx) * invA2;
+        double ny = (py + t * dy) * invB2;
+        double length = Math.sqrt( nx * nx + ny * ny );
+        normal[0] = nx / length;
+        normal[1] = ny / length;
+        return t;
+    }
+
+    public Ellipse2D getShape() {
+        return (Ellipse2D) shape.clone();
+    }
+}
@@ -1,5 +1,6 @@
 package entities;
 
+import main.PhotonWorld;
 import s2d.math.Vec;
 
 /**
@@ -13,6 +14,8 @@ public class Line {
     private double diffuse = 1;
     private double reflect = 0;
     private double transmit = 0;
+    private boolean portal = false;
+    private PhotonWorld world;
 
     public Line( Vec p1, Vec p2, double diffuse, double reflect, double transmit ) {
         this.p1 = p1;
@@ -27,15 +30,43 @@ public class Line {
             this.reflect = (reflect < 0) ? 0 : (reflect > 1) ? 1 : reflect;
             this.transmit = (transmit < 0) ? 0 : (transmit > 1) ? 1 : transmit;
         }
+        updateNormal();
+    }
+
+    private void updateNormal() {
         normal = Vec.createVectorAlgebraically( p2.getY() - p1.getY(), -p2.getX() + p1.getX() );
     }
 
+    // Lets the world this line was added to pick up edits without rebuilding everything.
+    private void changed() {
+        if ( world != null )
+            world.lineChanged( this );
+    }
+
+    public PhotonWorld getWorld() {
+        return world;
+    }
+
+    public void setWorld( PhotonWorld world ) {
+        this.world = world;
+    }
+
+    // Moves both endpoints at once, so dragging a line only updates the world once.
+    public void setPoints( Vec p1, Vec p2 ) {
+        this.p1 = p1;
+        this.p2 = p2;
+        updateNormal();
+        changed();
+    }
+
     public Vec getP1() {
         return p1;
     }
 
     public void setP1( Vec p1 ) {
         this.p1 = p1;
+        updateNormal();
+        changed();
     }
 
     public Vec getP2() {
@@ -44,6 +75,8 @@ public class Line {
 
     public void setP2( Vec p2 ) {
         this.p2 = p2;
+        updateNormal();
+        changed();
     }
 
     public Vec getNormal() {
@@ -60,6 +93,7 @@ public class Line {
 
     public void setDiffuse( double diffuse ) {
         this.diffuse = diffuse;
+        changed();
     }
 
     public double getReflect() {
@@ -68,6 +102,7 @@ public class Line {
 
     public void setReflect( double reflect ) {
         this.reflect = reflect;
+        changed();
     }
 
     public double getTransmit() {
@@ -76,5 +111,17 @@ public class Line {
 
     public void setTransmit( double transmit ) {
         this.transmit = transmit;
+        changed();
+    }
+
+    public boolean isPortal() {
+        return portal;
+    }
+
+    // Marks this line as an opening lights behind it should send most of their photons through. Usually left fully
+    // transmissive so the photons pass it unchanged.
+    public void setPortal( boolean portal ) {
+        this.portal = portal;
+        changed();
     }
 }
@@ -0,0 +1,78 @@
+package entities;
+
+import java.awt.geom.QuadCurve2D;
+
+/**
+ * A quadratic Bezier curve, such as a parabolic mirror.
+ */
+public class QuadCurve extends Curve {
+    private final double x0, y0;
+    private final double x1, y1;
+    private final double x2, y2;
+    private final QuadCurve2D shape;
+
+    public QuadCurve( QuadCurve2D shape, double diffuse, double reflect, double transmit ) {
+        super( diffuse, reflect, transmit );
+        this.shape = (QuadCurve2D) shape.clone();
+        x0 = shape.getX1();
+        y0 = shape.getY1();
+        x1 = shape.getCtrlX();
+        y1 = shape.getCtrlY();
+        x2 = shape.getX2();
+        y2 = shape.getY2();
+    }
+
+    @Override
+    public double intersect( double x, double y, double dx, double dy, double maxT, double[] normal ) {
+        // P(s) = P0 + 2s(P1 - P0) + s^2(P0 - 2P1 + P2) lies on the ray where its offset from the origin has no
+        // component along the ray's normal (-dy, dx).
+        double ax = x0 - 2 * x1 + x2, ay = y0 - 2 * y1 + y2;
+        double bx = 2 * (x1 - x0), by = 2 * (y1 - y0);
+        double qa = -dy * ax + dx * ay;
+        double qb = -dy * bx + dx * by;
+        double qc = -dy * (x0 - x) + dx * (y0 - y);
+        double s1, s2;
+        if ( qa == 0 ) {
+            if ( qb == 0 )
+                return Double.POSITIVE_INFINITY;
+            s1 = s2 = -qc / qb;
+        } else {
+            double discriminant = qb * qb - 4 * qa * qc;
+            if ( discriminant < 0 )
+                return Double.POSITIVE_INFINITY;
+            double q = -0.5 * (qb + Math.copySign( Math.sqrt( discriminant ), qb ));
+            s1 = q / qa;
+            s2 = (q == 0) ? s1 : qc / q;
+        }
+        double best = maxT;
+        double bestS = -1;
+        for ( int k = 0; k < 2; k++ ) {
+            double s = (k == 0) ? s1 : s2;
+            if ( s < 0 || s > 1 )
+                continue;
+            double t = dx * (x0 + s * (bx + s * ax) - x) + dy * (y0 + s * (by + s * ay) - y);
+            if ( t > SELF_HIT_EPSILON && t < best ) {
+                best = t;
+                bestS = s;
+            }
+        }
+        if ( bestS < 0 )
+            return Double.POSITIVE_INFINITY;
+        // Perpendicular to the tangent P'(s) = 2(P1 - P0) + 2s(P0 - 2P1 + P2).
+        double tx = bx + 2 * bestS * ax;
+        double ty = by + 2 * bestS * ay;
+        double length = Math.sqrt( tx * tx + ty * ty );
+        if ( length == 0 ) {
+            normal[0] = -dy;
+            normal[1] = dx;
+        } else {
+            normal[0] = ty / length;
+            normal[1] = -tx / length;
+        }
+        return best;
+    }
+
+    public QuadCurve2D getShape() {
+        return (QuadCurve2D) shape.clone();
+    }
+}
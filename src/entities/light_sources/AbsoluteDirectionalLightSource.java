@@ -12,11 +12,6 @@ import util.Color;
  */
 public class AbsoluteDirectionalLightSource extends DirectionalLightSource {
     public AbsoluteDirectionalLightSource( Vec position, Color color, PhotonWorld world, double direction ) {
-        super( position, color, world, direction );
-    }
-
-    @Override
-    public void tick( long rays ) {
-
+        super( position, color, world, AngularDistribution.collimated( direction ) );
     }
 }
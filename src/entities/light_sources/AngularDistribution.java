@@ -0,0 +1,102 @@
+package entities.light_sources;
+
+/**
+ * The directions a directional light emits in: offsets from its main direction whose size is x^spread / (1 - x) for a
+ * uniform x, on either side with equal chance. Large spreads keep almost every photon on the main direction with a
+ * long tail, and an infinite spread emits along it only.
+ * <p>
+ * That formula is the inverse CDF of the offsets, so it is tabulated once per spread along with the offsets' cos and
+ * sin, and a photon's direction is interpolated from the table instead of computed with pow and trig. Where the tail
+ * gets steep neighbouring entries are too far apart to interpolate between, and the formula is evaluated exactly.
+ */
+public class AngularDistribution {
+    private static final int TABLE_SIZE = 4096;
+    // Entries further apart than this, in radians, are not interpolated between.
+    private static final double MAX_STEP = 0.01;
+    private final double direction;
+    private final double spread;
+    private final double cosDirection, sinDirection;
+    // Offset, and its cos and sin, at x = k / TABLE_SIZE.
+    private final double[] offset, cos, sin;
+
+    public AngularDistribution( double direction, double spread ) {
+        this.direction = direction;
+        this.spread = spread;
+        cosDirection = Math.cos( direction );
+        sinDirection = Math.sin( direction );
+        offset = new double[TABLE_SIZE + 1];
+        cos = new double[TABLE_SIZE + 1];
+        sin = new double[TABLE_SIZE + 1];
+        for ( int k = 0; k < TABLE_SIZE; k++ ) {
+            offset[k] = offset( (double) k / TABLE_SIZE );
+            cos[k] = Math.cos( offset[k] );
+            sin[k] = Math.sin( offset[k] );
+        }
+        // The offset grows without bound as x approaches 1, so the last cell is always evaluated exactly.
+        offset[TABLE_SIZE] = Double.POSITIVE_INFINITY;
+    }
+
+    // Shares the tables of another distribution with the same spread.
+    private AngularDistribution( AngularDistribution other, double direction ) {
+        this.direction = direction;
+        this.spread = other.spread;
+        cosDirection = Math.cos( direction );
+        sinDirection = Math.sin( direction );
+        offset = other.offset;
+        cos = other.cos;
+        sin = other.sin;
+    }
+
+    // Every photon along the main direction.
+    public static AngularDistribution collimated( double direction ) {
+        return new AngularDistribution( direction, Double.POSITIVE_INFINITY );
+    }
+
+    /**
+     * @return The same distribution around another main direction, without tabulating it again.
+     */
+    public AngularDistribution withDirection( double direction ) {
+        return new AngularDistribution( this, direction );
+    }
+
+    private double offset( double x ) {
+        return Math.pow( x, spread ) / (1 - x);
+    }
+
+    /**
+     * Writes the unit direction of a photon into out.
+     *
+     * @param u   A uniform number in [0, 1). The half it falls in picks the side of the main direction.
+     * @param out Receives the x and y components of the direction.
+     */
+    public void sample( double u, double[] out ) {
+        double side = (u >= 0.5) ? 1 : -1;
+        double x = (u >= 0.5) ? 2 * u - 1 : 2 * u;
+        double f = x * TABLE_SIZE;
+        int k = Math.min( (int) f, TABLE_SIZE - 1 );
+        double c, s;
+        if ( offset[k + 1] - offset[k] > MAX_STEP ) {
+            double angle = offset( x );
+            c = Math.cos( angle );
+            s = Math.sin( angle );
+        } else {
+            double t = f - k;
+            c = cos[k] + t * (cos[k + 1] - cos[k]);
+            s = sin[k] + t * (sin[k + 1] - sin[k]);
+            double length = Math.sqrt( c * c + s * s );
+            c /= length;
+            s /= length;
+        }
+        s *= side;
+        out[0] = cosDirection * c - sinDirection * s;
+        out[1] = sinDirection * c + cosDirection * s;
+    }
+
+    public double getDirection() {
+        return direction;
+    }
+
+    public double getSpread() {
+        return spread;
+    }
+}
@@ -3,6 +3,7 @@ package entities.light_sources;
 import main.PhotonWorld;
 import s2d.math.Vec;
 import util.Color;
+import util.Sampler;
 
 
 /**
@@ -11,22 +12,44 @@ import util.Color;
  * @author Sina Ghaffari
  */
 public abstract class DirectionalLightSource extends LightSource {
-    protected double direction;
+    // Never null, and holds the main direction too.
+    private volatile AngularDistribution distribution;
 
-    public DirectionalLightSource( Vec position, Color color, PhotonWorld world, double direction ) {
+    public DirectionalLightSource( Vec position, Color color, PhotonWorld world, AngularDistribution distribution ) {
         super( position, color, world );
-        this.direction = direction;
+        setDistribution( distribution );
     }
 
-    public void tick( long rays ) {
-        super.tick( rays );
+    @Override
+    protected void emit( PhotonBatch batch, int count ) {
+        double px = position.getX();
+        double py = position.getY();
+        AngularDistribution distribution = this.distribution;
+        double[] d = new double[2];
+        // The spread keeps most photons close to the main direction, so consecutive ones already make coherent packets.
+        for ( int i = 0; i < count; i++ ) {
+            // A quasi-random path spends a single dimension on its emission.
+            Sampler sampler = world.beginPath();
+            distribution.sample( sampler.next(), d );
+            batch.add( px, py, d[0], d[1], sampler );
+        }
+    }
+
+    public AngularDistribution getDistribution() {
+        return distribution;
+    }
+
+    protected void setDistribution( AngularDistribution distribution ) {
+        if ( distribution == null )
+            throw new IllegalArgumentException( "A directional light needs an angular distribution." );
+        this.distribution = distribution;
     }
 
     public double getDirection() {
-        return direction;
+        return distribution.getDirection();
     }
 
     public void setDirection( double direction ) {
-        this.direction = direction;
+        distribution = distribution.withDirection( direction );
     }
 }
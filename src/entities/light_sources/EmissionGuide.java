@@ -0,0 +1,89 @@
+package entities.light_sources;
+
+/**
+ * Learns which directions around a light send photons that end up adding to the image, such as the few that make it
+ * through a slit, and emits more photons in those directions. The directions are cut into equal angular bins, each
+ * chosen in proportion to the contribution photons leaving through it have made so far.
+ * <p>
+ * The distribution is refit from the gathered contributions at growing intervals, so it settles as they converge.
+ */
+public class EmissionGuide implements EmissionSampler {
+    public static final int BINS = 256;
+    // Larger than a portal sampler's, as the bins are learned from noisy contributions.
+    private static final double UNIFORM_FRACTION = 0.2;
+    private static final long FIRST_REFIT = 1 << 12;
+    private static final long MAX_REFIT_INTERVAL = 1 << 20;
+    private final long version;
+    private final double x, y;
+    private final double[] energy = new double[BINS];
+    private long samples = 0;
+    private long nextRefit = FIRST_REFIT;
+    // cdf[k] is the chance of drawing a bin below k, and cdf[BINS] is 1.
+    private volatile double[] cdf;
+
+    public EmissionGuide( long version, double x, double y ) {
+        this.version = version;
+        this.x = x;
+        this.y = y;
+        double[] uniform = new double[BINS + 1];
+        for ( int k = 0; k <= BINS; k++ ) {
+            uniform[k] = (double) k / BINS;
+        }
+        cdf = uniform;
+    }
+
+    @Override
+    public boolean isCurrent( long version, double x, double y ) {
+        return this.version == version && this.x == x && this.y == y;
+    }
+
+    @Override
+    public double sample( double u, double[] out ) {
+        double[] cdf = this.cdf;
+        int lo = 0, hi = BINS - 1;
+        while ( lo < hi ) {
+            int mid = (lo + hi + 1) >>> 1;
+            if ( cdf[mid] <= u )
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        double p = cdf[lo + 1] - cdf[lo];
+        double angle = 2 * Math.PI * (lo + (u - cdf[lo]) / p) / BINS;
+        out[0] = Math.cos( angle );
+        out[1] = Math.sin( angle );
+        return 1 / (BINS * p);
+    }
+
+    // Adds what the batch's photons contributed to the bins they left through, and refits when enough have come in.
+    public synchronized void learn( PhotonBatch batch ) {
+        for ( int i = 0; i < batch.size(); i++ ) {
+            double angle = Math.atan2( batch.getDy( i ), batch.getDx( i ) );
+            int k = (int) ((angle < 0 ? angle + 2 * Math.PI : angle) / (2 * Math.PI) * BINS);
+            energy[Math.min( k, BINS - 1 )] += batch.getContribution( i );
+        }
+        samples += batch.size();
+        if ( samples >= nextRefit ) {
+            refit();
+            nextRefit = samples + Math.min( samples, MAX_REFIT_INTERVAL );
+        }
+    }
+
+    // The contributions are already weighted, so each bin's total estimates the light leaving through it no matter
+    // which distribution drew the photons.
+    private void refit() {
+        double total = 0;
+        for ( double e : energy ) {
+            total += e;
+        }
+        if ( total <= 0 )
+            return;
+        double[] next = new double[BINS + 1];
+        for ( int k = 0; k < BINS; k++ ) {
+            double p = UNIFORM_FRACTION / BINS + (1 - UNIFORM_FRACTION) * energy[k] / total;
+            next[k + 1] = next[k] + p;
+        }
+        next[BINS] = 1;
+        cdf = next;
+    }
+}
@@ -0,0 +1,22 @@
+package entities.light_sources;
+
+/**
+ * Draws the directions of a light's photons from a distribution that favors some of them over others. Implementations
+ * mix in a share of uniform sampling so no direction is ever starved, and photons carry the ratio of the uniform to the
+ * actual density as their weight, so the image converges to the same result as with uniform emission.
+ */
+public interface EmissionSampler {
+    /**
+     * @return Whether this sampler was made for the given material version and light position.
+     */
+    boolean isCurrent( long version, double x, double y );
+
+    /**
+     * Writes the unit direction of a photon into out.
+     *
+     * @param u   A uniform number in [0, 1).
+     * @param out Receives the x and y components of the direction.
+     * @return The weight the photon carries, the uniform density over the one it was drawn from.
+     */
+    double sample( double u, double[] out );
+}
@@ -4,6 +4,8 @@ import main.PhotonWorld;
 import s2d.math.Vec;
 import util.Color;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Created by Sina Ghaffari (sina.ghaffari321@gmail.com) on 10/12/14.
  *
@@ -14,7 +16,10 @@ public abstract class LightSource {
     public PhotonWorld world;
     protected Vec position;
     protected Color color;
-    private long rayCount = 0;
+    // Every emitter thread ticks every light, so the count is striped across threads rather than one contended field.
+    private final LongAdder rayCount = new LongAdder();
+    // Relative to the other lights of the world, which share their photons out in proportion to it.
+    private double power = 1;
 
     public LightSource( Vec position, Color color, PhotonWorld world ) {
         this.position = position;
@@ -22,8 +27,48 @@ public abstract class LightSource {
         this.world = world;
     }
 
+    // Emits that many photons, in batches the light fills and the world then traces.
     public void tick( long rays ) {
-        rayCount += rays;
+        for ( long i = 0; i < rays; i += PhotonBatch.CAPACITY ) {
+            PhotonBatch batch = world.beginBatch();
+            emit( batch, (int) Math.min( PhotonBatch.CAPACITY, rays - i ) );
+            world.traceBatch( batch, color );
+            learn( batch );
+        }
+        rayCount.add( rays );
+    }
+
+    /**
+     * Fills the batch with photons leaving this light. Each photon starts a path with {@link PhotonWorld#beginPath()}
+     * and draws the numbers for its emission from it before it is added.
+     *
+     * @param batch An empty batch.
+     * @param count How many photons to add, at most {@link PhotonBatch#CAPACITY}.
+     */
+    protected abstract void emit( PhotonBatch batch, int count );
+
+    // Called with every batch once it was traced and knows what each photon contributed to the image.
+    protected void learn( PhotonBatch batch ) {
+    }
+
+    // Photons emitted since the world was last cleared.
+    public long getRayCount() {
+        return rayCount.sum();
+    }
+
+    // Only exact while the emitters are paused, as they are whenever the world clears.
+    public void clearRayCount() {
+        rayCount.reset();
+    }
+
+    public double getPower() {
+        return power;
+    }
+
+    public void setPower( double power ) {
+        this.power = Math.max( 0, power );
+        if ( world != null )
+            world.lightSourceChanged( this );
     }
 
     public Color getColor() {
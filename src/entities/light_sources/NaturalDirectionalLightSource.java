@@ -4,8 +4,6 @@ import main.PhotonWorld;
 import s2d.math.Vec;
 import util.Color;
 
-import java.util.concurrent.ThreadLocalRandom;
-
 
 /**
  * Created by Sina Ghaffari (sina.ghaffari321@gmail.com) on 10/12/14.
@@ -13,21 +11,17 @@ import java.util.concurrent.ThreadLocalRandom;
  * @author Sina Ghaffari
  */
 public class NaturalDirectionalLightSource extends DirectionalLightSource {
-    int spread = 100;
+    private static final double DEFAULT_SPREAD = 100;
 
     public NaturalDirectionalLightSource( Vec position, Color color, PhotonWorld world, double direction ) {
-        super( position, color, world, direction );
+        super( position, color, world, new AngularDistribution( direction, DEFAULT_SPREAD ) );
+    }
+
+    public double getSpread() {
+        return getDistribution().getSpread();
     }
 
-    @Override
-    public void tick( long rays ) {
-        for ( int i = 0; i < rays; i++ ) {
-            double x = ThreadLocalRandom.current().nextDouble();
-            boolean pn = ThreadLocalRandom.current().nextBoolean();
-            double angleModifier = Math.pow( x, spread ) / ((x - 1));
-            angleModifier *= (pn) ? -1 : 1;
-            world.resolveRay( position, Vec.createVectorGeometrically( direction + angleModifier, 1 ), color );
-        }
-        super.tick( rays );
+    public void setSpread( double spread ) {
+        setDistribution( new AngularDistribution( getDirection(), spread ) );
     }
 }
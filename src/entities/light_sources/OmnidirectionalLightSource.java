@@ -1,9 +1,13 @@
 package entities.light_sources;
 
+import acceleration.AngularHitCache;
 import main.PhotonWorld;
 import s2d.math.Vec;
 import util.Color;
+import util.Sampler;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 
 
@@ -13,15 +17,176 @@ import java.util.concurrent.ThreadLocalRandom;
  * @author Sina Ghaffari
  */
 public class OmnidirectionalLightSource extends LightSource {
+    // Angular width of the wedge a packet's photons are drawn from.
+    private static final double PACKET_SPREAD = 2 * Math.PI / 64;
+    // Photons a light emits from one spot between edits before its first hits are swept. Lights that move or are edited
+    // more often than this would spend more on sweeps than the lookups save.
+    private static final long FIRST_HIT_SWEEP_PHOTONS = 1 << 16;
+    private volatile AngularHitCache firstHits;
+    // The sweep under way, if any, and the photons emitted since the scene version or position last changed.
+    private Future<AngularHitCache> sweep;
+    private long sweepVersion = -1;
+    private double sweepX, sweepY;
+    private long sweepPhotons;
+    private volatile EmissionGuide guide;
+    private volatile PortalSampler portals;
+
     public OmnidirectionalLightSource( Vec position, Color color, PhotonWorld world ) {
         super( position, color, world );
     }
 
     @Override
-    public void tick( long rays ) {
-        for ( int i = 0; i < rays; i++ ) {
-            world.resolveRay( position, Vec.createVectorGeometrically( ThreadLocalRandom.current().nextDouble() * 2 * Math.PI, 1 ), color );
+    protected void emit( PhotonBatch batch, int count ) {
+        double x = position.getX();
+        double y = position.getY();
+        // With the first hits cached a lookup is already cheaper than tracing a packet, so packets are skipped.
+        AngularHitCache cache = world.isUsingFirstHitCache() ? getFirstHits( x, y, count ) : null;
+        batch.setFirstHits( cache );
+        // The world lights what this light can see directly, so its photons only carry the light scattered after that.
+        batch.setIndirectOnly( world.isUsingDirectLighting() );
+        PortalSampler portals = this.portals;
+        if ( portals == null || !portals.isCurrent( world.getMaterialVersion(), x, y ) ) {
+            synchronized ( this ) {
+                portals = world.getPortalSampler( this.portals, x, y );
+                this.portals = portals;
+            }
+        }
+        // Portals the user placed take precedence over the directions the guide learned.
+        if ( !portals.isEmpty() ) {
+            emitSampled( batch, portals, x, y, count );
+            return;
+        }
+        if ( world.isUsingEmissionGuiding() ) {
+            emitSampled( batch, getGuide( x, y ), x, y, count );
+            return;
+        }
+        int packetSize = world.getPacketSize();
+        if ( packetSize > 1 && cache == null ) {
+            for ( int i = 0; i < count; i += packetSize ) {
+                emitWedge( batch, x, y, Math.min( packetSize, count - i ) );
+            }
+            return;
+        }
+        boolean quasiRandom = world.isUsingQuasiRandom();
+        for ( int i = 0; i < count; i++ ) {
+            Sampler sampler = world.beginPath();
+            double dx, dy;
+            if ( quasiRandom ) {
+                // Rejection would spend a varying number of dimensions of the sequence, so the angle is drawn instead.
+                double angle = 2 * Math.PI * sampler.next();
+                dx = Math.cos( angle );
+                dy = Math.sin( angle );
+            } else {
+                // Uniform direction without trig or a Vec: a point in the unit disc, pushed out onto the circle.
+                double r2;
+                do {
+                    dx = 2 * ThreadLocalRandom.current().nextDouble() - 1;
+                    dy = 2 * ThreadLocalRandom.current().nextDouble() - 1;
+                    r2 = dx * dx + dy * dy;
+                } while ( r2 > 1 || r2 < 1e-12 );
+                double inv = 1 / Math.sqrt( r2 );
+                dx *= inv;
+                dy *= inv;
+            }
+            batch.add( x, y, dx, dy, sampler );
+        }
+    }
+
+    // The first hits around (x, y) if they are swept for the current scene, otherwise null. Counts the photons about to
+    // be emitted, and starts a sweep in the background once there have been enough.
+    private AngularHitCache getFirstHits( double x, double y, int count ) {
+        long version = world.getSceneVersion();
+        AngularHitCache cache = firstHits;
+        if ( cache != null && cache.isCurrent( version, x, y ) )
+            return cache;
+        synchronized ( this ) {
+            if ( sweep != null && sweep.isDone() ) {
+                try {
+                    firstHits = sweep.get();
+                } catch ( InterruptedException e ) {
+                    e.printStackTrace();
+                } catch ( ExecutionException e ) {
+                    e.printStackTrace();
+                }
+                sweep = null;
+                cache = firstHits;
+                if ( cache != null && cache.isCurrent( version, x, y ) )
+                    return cache;
+            }
+            if ( sweep == null ) {
+                if ( version != sweepVersion || x != sweepX || y != sweepY ) {
+                    sweepVersion = version;
+                    sweepX = x;
+                    sweepY = y;
+                    sweepPhotons = 0;
+                }
+                sweepPhotons += count;
+                if ( sweepPhotons >= FIRST_HIT_SWEEP_PHOTONS )
+                    sweep = world.sweepFirstHits( x, y );
+            }
+        }
+        return null;
+    }
+
+    // Returns the cache swept for the current scene and position, or null, without starting a sweep.
+    public AngularHitCache getFirstHits() {
+        AngularHitCache cache = firstHits;
+        if ( cache != null && cache.isCurrent( world.getSceneVersion(), position.getX(), position.getY() ) )
+            return cache;
+        return null;
+    }
+
+    private void emitSampled( PhotonBatch batch, EmissionSampler directions, double x, double y, int count ) {
+        double[] d = new double[2];
+        for ( int i = 0; i < count; i++ ) {
+            Sampler sampler = world.beginPath();
+            double weight = directions.sample( sampler.next(), d );
+            batch.add( x, y, d[0], d[1], sampler, weight );
+        }
+    }
+
+    // The guide learned for the current materials and position, started afresh when either changed.
+    private EmissionGuide getGuide( double x, double y ) {
+        EmissionGuide guide = this.guide;
+        long version = world.getMaterialVersion();
+        if ( guide == null || !guide.isCurrent( version, x, y ) ) {
+            synchronized ( this ) {
+                guide = this.guide;
+                if ( guide == null || !guide.isCurrent( version, x, y ) ) {
+                    guide = new EmissionGuide( version, x, y );
+                    this.guide = guide;
+                }
+            }
+        }
+        return guide;
+    }
+
+    @Override
+    protected void learn( PhotonBatch batch ) {
+        EmissionGuide guide = this.guide;
+        if ( guide != null && world.isUsingEmissionGuiding() )
+            guide.learn( batch );
+    }
+
+    // A wedge with a uniformly distributed center, filled with uniformly distributed photons, keeps every photon's
+    // direction uniform while the packet the world makes of them stays coherent.
+    private void emitWedge( PhotonBatch batch, double x, double y, int size ) {
+        double cx, cy, r2;
+        do {
+            cx = 2 * ThreadLocalRandom.current().nextDouble() - 1;
+            cy = 2 * ThreadLocalRandom.current().nextDouble() - 1;
+            r2 = cx * cx + cy * cy;
+        } while ( r2 > 1 || r2 < 1e-12 );
+        double inv = 1 / Math.sqrt( r2 );
+        cx *= inv;
+        cy *= inv;
+        for ( int i = 0; i < size; i++ ) {
+            // The wedge is narrow enough for short series to stand in for cos and sin of the offset.
+            double d = (ThreadLocalRandom.current().nextDouble() - 0.5) * PACKET_SPREAD;
+            double d2 = d * d;
+            double cos = 1 - d2 / 2 * (1 - d2 / 12);
+            double sin = d * (1 - d2 / 6 * (1 - d2 / 20));
+            batch.add( x, y, cx * cos - cy * sin, cx * sin + cy * cos, world.beginPath() );
         }
-        super.tick( rays );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package entities.light_sources;
+
+import acceleration.AngularHitCache;
+import util.Sampler;
+
+/**
+ * Up to {@link #CAPACITY} photons a light has emitted but the world has not traced yet, as plain arrays of origins and
+ * directions. Lights fill a batch in one tight loop and the world traces it in another, free to group photons leaving
+ * the same point into packets. Each emitter thread owns one.
+ */
+public class PhotonBatch {
+    public static final int CAPACITY = 256;
+    private final double[] x = new double[CAPACITY], y = new double[CAPACITY];
+    private final double[] dx = new double[CAPACITY], dy = new double[CAPACITY];
+    // Where each photon's path stands in the sampler, so tracing continues the path its emission started.
+    private final long[] path = new long[CAPACITY];
+    private final int[] dimension = new int[CAPACITY];
+    // Energy each photon carries relative to one drawn uniformly, and what its path added to the image once traced.
+    private final double[] weight = new double[CAPACITY], contribution = new double[CAPACITY];
+    private int size;
+    private AngularHitCache firstHits;
+    private boolean indirectOnly;
+
+    public void reset() {
+        size = 0;
+        firstHits = null;
+        indirectOnly = false;
+    }
+
+    /**
+     * Adds a photon to the batch.
+     *
+     * @param x       The x coordinate it leaves from.
+     * @param y       The y coordinate it leaves from.
+     * @param dx      The x component of its direction. Must be normalized together with <code>dy</code>.
+     * @param dy      The y component of its direction.
+     * @param sampler The sampler its emission numbers were drawn from, after drawing them.
+     */
+    public void add( double x, double y, double dx, double dy, Sampler sampler ) {
+        add( x, y, dx, dy, sampler, 1 );
+    }
+
+    // Same as above, for a photon drawn from a non-uniform distribution that carries the given weight to make up for it.
+    public void add( double x, double y, double dx, double dy, Sampler sampler, double weight ) {
+        int i = size++;
+        this.weight[i] = weight;
+        contribution[i] = 0;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.dx[i] = dx;
+        this.dy[i] = dy;
+        path[i] = sampler.getIndex();
+        dimension[i] = sampler.getDimension();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getX( int i ) {
+        return x[i];
+    }
+
+    public double getY( int i ) {
+        return y[i];
+    }
+
+    public double getDx( int i ) {
+        return dx[i];
+    }
+
+    public double getDy( int i ) {
+        return dy[i];
+    }
+
+    public double getWeight( int i ) {
+        return weight[i];
+    }
+
+    // The weighted length of everything the photon's path splat, set by the world when it traces the batch.
+    public double getContribution( int i ) {
+        return contribution[i];
+    }
+
+    public void setContribution( int i, double contribution ) {
+        this.contribution[i] = contribution;
+    }
+
+    public long getPath( int i ) {
+        return path[i];
+    }
+
+    public int getDimension( int i ) {
+        return dimension[i];
+    }
+
+    // First hits swept around the point every photon of the batch leaves from, or null.
+    public AngularHitCache getFirstHits() {
+        return firstHits;
+    }
+
+    public void setFirstHits( AngularHitCache firstHits ) {
+        this.firstHits = firstHits;
+    }
+
+    // Whether the photons' first segments are left out of the image, since their direct light is computed analytically.
+    public boolean isIndirectOnly() {
+        return indirectOnly;
+    }
+
+    public void setIndirectOnly( boolean indirectOnly ) {
+        this.indirectOnly = indirectOnly;
+    }
+}
@@ -0,0 +1,120 @@
+package entities.light_sources;
+
+import acceleration.Accelerator;
+import acceleration.PackedLines;
+import acceleration.RayQuery;
+
+/**
+ * Emission for a light that sees the outside through a few openings, marked as portal {@link entities.Line}s. Most
+ * photons are sent into the angles the visible portals cover, the rest uniformly so the inside of the housing still gets
+ * lit.
+ */
+public class PortalSampler implements EmissionSampler {
+    // Just enough to light the inside of the housing.
+    private static final double UNIFORM_FRACTION = 0.1;
+    // Points along a portal, as fractions of its length, checked for a clear view from the light.
+    private static final double[] VISIBILITY_SAMPLES = { 0.05, 0.5, 0.95 };
+    private final long version;
+    private final double x, y;
+    // Portal k covers the angles start[k] to start[k] + width[k], and cumulative[k] is the width of the ones before it.
+    private final double[] start, width, cumulative;
+    private final int portals;
+    private final double totalWidth;
+
+    /**
+     * Finds the portals visible from (x, y).
+     *
+     * @param lines   The lines of the scene.
+     * @param portals The indices of the lines marked as portals.
+     * @param base    An accelerator over the lines, to check the portals are visible.
+     * @param x       The x coordinate of the light.
+     * @param y       The y coordinate of the light.
+     * @param version The material version of the scene, so the light can tell when this sampler is stale.
+     */
+    public PortalSampler( PackedLines lines, int[] portals, Accelerator base, double x, double y, long version ) {
+        this.version = version;
+        this.x = x;
+        this.y = y;
+        start = new double[portals.length];
+        width = new double[portals.length];
+        cumulative = new double[portals.length];
+        RayQuery query = new RayQuery();
+        int count = 0;
+        double total = 0;
+        for ( int portal : portals ) {
+            double x1 = lines.getLine( portal ).getP1().getX(), y1 = lines.getLine( portal ).getP1().getY();
+            double x2 = lines.getLine( portal ).getP2().getX(), y2 = lines.getLine( portal ).getP2().getY();
+            if ( !visible( query, base, portal, x1, y1, x2, y2 ) )
+                continue;
+            double a1 = Math.atan2( y1 - y, x1 - x );
+            double sweep = Math.atan2( y2 - y, x2 - x ) - a1;
+            if ( sweep > Math.PI )
+                sweep -= 2 * Math.PI;
+            else if ( sweep < -Math.PI )
+                sweep += 2 * Math.PI;
+            if ( sweep == 0 )
+                continue;
+            start[count] = (sweep > 0) ? a1 : a1 + sweep;
+            width[count] = Math.abs( sweep );
+            cumulative[count] = total;
+            total += width[count];
+            count++;
+        }
+        this.portals = count;
+        totalWidth = total;
+    }
+
+    private boolean visible( RayQuery query, Accelerator base, int portal, double x1, double y1, double x2, double y2 ) {
+        for ( double s : VISIBILITY_SAMPLES ) {
+            double dx = x1 + s * (x2 - x1) - x;
+            double dy = y1 + s * (y2 - y1) - y;
+            double distance = Math.sqrt( dx * dx + dy * dy );
+            if ( distance == 0 )
+                continue;
+            query.reset( x, y, dx / distance, dy / distance, -1 );
+            base.closestHit( query );
+            if ( query.getIndex() == portal || query.getT() >= distance * (1 - 1e-9) )
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isCurrent( long version, double x, double y ) {
+        return this.version == version && this.x == x && this.y == y;
+    }
+
+    // Whether the light sees no portal, in which case it should emit uniformly.
+    public boolean isEmpty() {
+        return portals == 0;
+    }
+
+    @Override
+    public double sample( double u, double[] out ) {
+        double angle;
+        int drawn = -1;
+        if ( u < UNIFORM_FRACTION ) {
+            angle = 2 * Math.PI * u / UNIFORM_FRACTION;
+        } else {
+            double w = (u - UNIFORM_FRACTION) / (1 - UNIFORM_FRACTION) * totalWidth;
+            int k = portals - 1;
+            while ( k > 0 && cumulative[k] > w ) {
+                k--;
+            }
+            angle = start[k] + Math.min( w - cumulative[k], width[k] );
+            drawn = k;
+        }
+        out[0] = Math.cos( angle );
+        out[1] = Math.sin( angle );
+        // Portals can overlap as seen from the light, and a direction inside several is drawn through each of them.
+        int covering = 0;
+        for ( int k = 0; k < portals; k++ ) {
+            double offset = angle - start[k];
+            offset -= 2 * Math.PI * Math.floor( offset / (2 * Math.PI) );
+            if ( k == drawn || offset <= width[k] )
+                covering++;
+        }
+        double density = UNIFORM_FRACTION / (2 * Math.PI) + (1 - UNIFORM_FRACTION) * covering / totalWidth;
+        return 1 / (2 * Math.PI * density);
+    }
+}
@@ -1,20 +1,54 @@
 package main;
 
+import accumulation.AccumulationBuffer;
+import accumulation.AccumulationType;
+import accumulation.LineRasterizer;
+import accumulation.OffHeapAccumulationBuffer;
+import accumulation.RowSink;
+import accumulation.SplatQueue;
+import accumulation.SplatStage;
+import acceleration.Accelerator;
+import acceleration.AcceleratorType;
+import acceleration.AngularHitCache;
+import acceleration.BVH;
+import acceleration.IntersectionKernel;
+import acceleration.PackedLines;
+import acceleration.PotentiallyVisibleSet;
+import acceleration.RayPacket;
+import acceleration.RayQuery;
+import acceleration.TwoLevelAccelerator;
+import entities.Curve;
 import entities.Line;
 import entities.light_sources.LightSource;
+import entities.light_sources.OmnidirectionalLightSource;
+import entities.light_sources.PhotonBatch;
+import entities.light_sources.PortalSampler;
 import s2d.math.S2DRandom;
 import s2d.math.Vec;
-import s2d.util.Util;
+import util.AliasTable;
 import util.Color;
+import util.Sampler;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -23,40 +57,126 @@ import java.util.concurrent.ThreadLocalRandom;
  * @author Sina Ghaffari
  */
 public class PhotonWorld {
+    public static final int HISTOGRAM_BINS = 64;
+    // Edited lines are kept in a small tree of their own until there are this many, or 1/32 of the scene.
+    private static final int MIN_DYNAMIC_FOLD = 64;
     private static int CPU_CORES = Runtime.getRuntime().availableProcessors();
     public static final Random[] RAND = new S2DRandom[CPU_CORES];
     private final byte COLOR_DEPTH = 4;
     long startTime = 0;
     double tickRate = 60;
     ExecutorService es = Executors.newFixedThreadPool( CPU_CORES );
+    // Sweeps first-hit caches away from the emitters, so neither they nor an edit waiting on them sit through a sweep.
+    private final ExecutorService sweeper = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override
+        public Thread newThread( Runnable task ) {
+            Thread thread = new Thread( task, "First hit sweeper" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
     ConstantPhotonEmitter[] constantPhotonEmitter = new ConstantPhotonEmitter[CPU_CORES];
     private int width, height;
     private ArrayList<Line> lineList = new ArrayList<Line>();
+    private ArrayList<Curve> curveList = new ArrayList<Curve>();
+    private Curve[] curves = new Curve[0];
     private ArrayList<LightSource> lightSources = new ArrayList<LightSource>();
+    // Which light each photon comes from, in proportion to their power.
+    private AliasTable lightTable = new AliasTable( new double[0] );
     private BufferedImage worldImage;
+    // Every thread's accumulation buffer summed together, refreshed when rendering. Without a window it and the image
+    // are left out, and rawPixelInfo is only allocated if asked for.
     private double[] rawPixelInfo;
     private int[] convertedPixels;
-    private long globalRayCount = 0;
     private double exposure = 500;
     private ArrayList<Callable<Integer>> photonEmitters = new ArrayList<Callable<Integer>>();
     private ArrayList<Callable<Integer>> renderers = new ArrayList<Callable<Integer>>();
+    private AcceleratorType acceleratorType = AcceleratorType.AUTO;
+    private boolean singlePrecision = false;
+    private IntersectionKernel kernel = IntersectionKernel.load( singlePrecision );
+    private PackedLines geometry;
+    private Accelerator accelerator;
+    private Accelerator staticAccelerator;
+    private BitSet dynamicLines = new BitSet();
+    private BVH dynamicTree;
+    private boolean usePotentiallyVisibleSet = false;
+    private volatile boolean useFirstHitCache = false;
+    private volatile long sceneVersion = 0;
+    // Bumped when only what a line is made of, or whether it is a portal, changes. That moves where photons go but not
+    // what they hit first, so it leaves the first hit caches and the direct light alone.
+    private volatile long materialVersion = 0;
+    // The indices of the lines marked as portals, kept so lights need not look through every line to find them.
+    private int[] portalIndices = new int[0];
+    private PotentiallyVisibleSet potentiallyVisibleSet;
+    private int packetSize = 1;
+    private int batchSize = 16;
+    private int maxPathDepth = 256;
+    private int rouletteDepth = 16;
+    private double rouletteSurvival = 0.9;
+    private AccumulationType accumulationType = AccumulationType.DENSE;
+    // The buffer every thread adds to when the type is shared.
+    private AccumulationBuffer sharedAccumulation;
+    // Draws the tracers' segments on threads of its own, into one buffer of the accumulation type, when set. The
+    // tracers then have no buffers of their own. Otherwise each tracer draws its own.
+    private volatile SplatStage splatStage;
+    private int tracerThreads = CPU_CORES;
+    private boolean useQuasiRandom = false;
+    private boolean useDirectLighting = false;
+    private boolean useEmissionGuiding = false;
+    // Direct light from every omnidirectional light, scaled by its power like the photons are, laid out like
+    // rawPixelInfo, along with the scene version and the lights it was computed for.
+    private double[] directPixelInfo;
+    private long directVersion = -1;
+    private double[] directLights = new double[0];
+    private final ArrayList<TraceContext> traceContexts = new ArrayList<TraceContext>();
+    private final ThreadLocal<TraceContext> traceContext = new ThreadLocal<TraceContext>() {
+        @Override
+        protected TraceContext initialValue() {
+            TraceContext context = new TraceContext( newAccumulationBuffer(), width, height );
+            synchronized ( traceContexts ) {
+                traceContexts.add( context );
+            }
+            return context;
+        }
+    };
 
     public PhotonWorld( int width, int height ) {
+        this( width, height, true );
+    }
+
+    /**
+     * @param display Whether the world is drawn with {@link #render}. Without a window nothing the size of the canvas is
+     *                kept on the heap, and the light is read out with {@link #streamLight} or {@link #exportLight}, so
+     *                the canvas can be larger than any array. Such a canvas starts out with OFF_HEAP accumulation.
+     */
+    public PhotonWorld( int width, int height, boolean display ) {
         this.width = width;
         this.height = height;
-        worldImage = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
-        rawPixelInfo = new double[width * height * COLOR_DEPTH];
-        convertedPixels = new int[width * height * COLOR_DEPTH];
+        if ( !fitsInArray() ) {
+            if ( display )
+                throw new IllegalArgumentException( "A " + width + "x" + height + " canvas is too large for a window" );
+            accumulationType = AccumulationType.OFF_HEAP;
+            sharedAccumulation = accumulationType.create( width, height );
+        }
+        if ( display ) {
+            worldImage = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+            rawPixelInfo = new double[width * height * COLOR_DEPTH];
+            convertedPixels = new int[width * height * COLOR_DEPTH];
+        }
         lineList.add( new Line( Vec.createVectorAlgebraically( 0, 0 ), Vec.createVectorAlgebraically( width, 0 ), 0, 0, 0 ) );
         lineList.add( new Line( Vec.createVectorAlgebraically( width, 0 ), Vec.createVectorAlgebraically( width, height ), 0, 0, 0 ) );
         lineList.add( new Line( Vec.createVectorAlgebraically( width, height ), Vec.createVectorAlgebraically( 0, height ), 0, 0, 0 ) );
         lineList.add( new Line( Vec.createVectorAlgebraically( 0, height ), Vec.createVectorAlgebraically( 0, 0 ), 0, 0, 0 ) );
+        for ( Line line : lineList ) {
+            line.setWorld( this );
+        }
+        buildAccelerator();
 
         for ( int p = 0; p < CPU_CORES; p++ ) {
             constantPhotonEmitter[p] = new ConstantPhotonEmitter( this );
             constantPhotonEmitter[p].start();
             //photonEmitters.add( new PhotonEmitter( this ) );
-            renderers.add( new Renderer( this, p * (width * height * COLOR_DEPTH / CPU_CORES) ) );
+            renderers.add( new Renderer( this, p * height / CPU_CORES, (p + 1) * height / CPU_CORES ) );
         }
 
     }
@@ -66,51 +186,261 @@ public class PhotonWorld {
     }
 
     public void clearPhotons() {
-        globalRayCount = 0;
-        rawPixelInfo = new double[width * height * COLOR_DEPTH];
+        for ( TraceContext context : traceContexts() ) {
+            Arrays.fill( context.pathLengths, 0 );
+            context.rays = 0;
+        }
+        if ( splatStage != null ) {
+            splatStage.flush();
+            splatStage.clearRayCount();
+        }
+        for ( AccumulationBuffer buffer : accumulationBuffers() ) {
+            buffer.clear();
+        }
+        for ( LightSource light : lightSources ) {
+            light.clearRayCount();
+        }
+        // Cleared in place rather than reallocated, which is most of what an edit costs on a large canvas.
+        if ( rawPixelInfo != null )
+            Arrays.fill( rawPixelInfo, 0 );
+    }
+
+    private TraceContext[] traceContexts() {
+        synchronized ( traceContexts ) {
+            return traceContexts.toArray( new TraceContext[traceContexts.size()] );
+        }
+    }
+
+    private AccumulationBuffer newAccumulationBuffer() {
+        if ( splatStage != null )
+            return null;
+        if ( accumulationType.isShared() )
+            return sharedAccumulation;
+        return accumulationType.create( width, height );
+    }
+
+    // Every buffer photons are added to, each once however many threads share it.
+    private ArrayList<AccumulationBuffer> accumulationBuffers() {
+        ArrayList<AccumulationBuffer> buffers = new ArrayList<AccumulationBuffer>();
+        for ( TraceContext context : traceContexts() ) {
+            if ( context.accumulation != null && !buffers.contains( context.accumulation ) )
+                buffers.add( context.accumulation );
+        }
+        SplatStage stage = splatStage;
+        if ( stage != null )
+            buffers.add( stage.getBuffer() );
+        return buffers;
+    }
+
+    // Sums every thread's buffer over the given rows into rawPixelInfo, which it returns. The emitters can keep adding
+    // to their buffers meanwhile, their photons just land in the next sum.
+    double[] reduceRows( int fromRow, int toRow ) {
+        Arrays.fill( rawPixelInfo, fromRow * width * COLOR_DEPTH, toRow * width * COLOR_DEPTH, 0 );
+        for ( AccumulationBuffer buffer : accumulationBuffers() ) {
+            buffer.addRowsTo( rawPixelInfo, fromRow, toRow );
+        }
+        return rawPixelInfo;
     }
 
     public void addLightSource( LightSource light ) {
         pauseEmitters();
         clearPhotons();
         lightSources.add( light );
+        buildLightTable();
+        resumeEmitters();
+    }
+
+    // Adds many lights with a single pause and a single rebuild of the light table.
+    public void addLightSources( Collection<LightSource> lights ) {
+        pauseEmitters();
+        clearPhotons();
+        lightSources.addAll( lights );
+        buildLightTable();
         resumeEmitters();
     }
 
+    // Called by a light of this world after its power changed.
+    public void lightSourceChanged( LightSource light ) {
+        if ( !lightSources.contains( light ) )
+            return;
+        pauseEmitters();
+        clearPhotons();
+        buildLightTable();
+        resumeEmitters();
+    }
+
+    private void buildLightTable() {
+        double[] power = new double[lightSources.size()];
+        for ( int k = 0; k < power.length; k++ ) {
+            power[k] = lightSources.get( k ).getPower();
+        }
+        lightTable = new AliasTable( power );
+    }
+
     public void addLine( Line line ) {
         pauseEmitters();
         clearPhotons();
         lineList.add( line );
+        line.setWorld( this );
+        if ( usePotentiallyVisibleSet ) {
+            buildAccelerator();
+        } else {
+            int index = geometry.append( line );
+            if ( line.isPortal() ) {
+                portalIndices = Arrays.copyOf( portalIndices, portalIndices.length + 1 );
+                portalIndices[portalIndices.length - 1] = index;
+            }
+            addDynamic( index );
+        }
+        resumeEmitters();
+    }
+
+    public void addLines( Collection<Line> lines ) {
+        pauseEmitters();
+        clearPhotons();
+        lineList.addAll( lines );
+        for ( Line line : lines ) {
+            line.setWorld( this );
+        }
+        buildAccelerator();
+        resumeEmitters();
+    }
+
+    // Called by a line of this world after it was moved or its material changed.
+    public void lineChanged( Line line ) {
+        int index = lineList.indexOf( line );
+        if ( index < 0 )
+            return;
+        pauseEmitters();
+        clearPhotons();
+        if ( usePotentiallyVisibleSet ) {
+            // The lists compare the old and new geometry to find what moved, so they need a fresh copy.
+            buildAccelerator();
+        } else if ( geometry.refresh( index ) ) {
+            if ( dynamicLines.get( index ) ) {
+                sceneVersion++;
+                dynamicTree.refit();
+            } else {
+                addDynamic( index );
+            }
+        } else {
+            findPortals();
+            materialVersion++;
+        }
+        resumeEmitters();
+    }
+
+    // Moves a line over to the dynamic tree, or folds every dynamic line back into the static accelerator once there
+    // are too many of them for a small tree.
+    private void addDynamic( int index ) {
+        sceneVersion++;
+        dynamicLines.set( index );
+        int count = dynamicLines.cardinality();
+        if ( count > Math.max( MIN_DYNAMIC_FOLD, geometry.size() / 32 ) ) {
+            buildAccelerator();
+            return;
+        }
+        int[] subset = new int[count];
+        for ( int i = dynamicLines.nextSetBit( 0 ), k = 0; i >= 0; i = dynamicLines.nextSetBit( i + 1 ) ) {
+            subset[k++] = i;
+        }
+        dynamicTree = new BVH( geometry, subset );
+        accelerator = new TwoLevelAccelerator( staticAccelerator, dynamicTree );
+    }
+
+    public void addCurve( Curve curve ) {
+        pauseEmitters();
+        clearPhotons();
+        curveList.add( curve );
+        curves = curveList.toArray( new Curve[curveList.size()] );
+        sceneVersion++;
         resumeEmitters();
     }
 
+    // Recompiles the geometry the emitters trace against from scratch. Must only be called while they are paused.
+    private void buildAccelerator() {
+        sceneVersion++;
+        geometry = new PackedLines( lineList );
+        findPortals();
+        dynamicLines.clear();
+        dynamicTree = null;
+        staticAccelerator = acceleratorType.build( geometry, kernel );
+        accelerator = staticAccelerator;
+        if ( usePotentiallyVisibleSet ) {
+            if ( potentiallyVisibleSet == null )
+                potentiallyVisibleSet = PotentiallyVisibleSet.build( geometry, accelerator, es );
+            else
+                potentiallyVisibleSet = potentiallyVisibleSet.update( geometry, accelerator, es );
+            accelerator = potentiallyVisibleSet;
+        } else {
+            potentiallyVisibleSet = null;
+        }
+    }
+
+    private void findPortals() {
+        int count = 0;
+        int[] portals = new int[geometry.size()];
+        for ( int i = 0; i < geometry.size(); i++ ) {
+            if ( geometry.getLine( i ).isPortal() )
+                portals[count++] = i;
+        }
+        portalIndices = Arrays.copyOf( portals, count );
+    }
+
     public void smartTick( long time ) throws InterruptedException {
         this.tickRate = time;
         startTime = System.nanoTime();
     }
 
-    // ticks each LightSource that many times
+    // Emits that many photons in batches, each from one light picked in proportion to its power. A pick takes constant
+    // time, so a tick costs the same however many lights there are, and every photon carries the same energy, the total
+    // power over the photon count.
     public void tick( long rays ) {
-        for ( LightSource ls : lightSources ) {
-            ls.tick( rays );
-            globalRayCount += rays;
+        AliasTable table = lightTable;
+        if ( table.size() == 0 || table.getTotal() == 0 )
+            return;
+        int batch = getEmissionBatch();
+        for ( long i = 0; i < rays; i += batch ) {
+            LightSource light = lightSources.get( table.sample( ThreadLocalRandom.current().nextDouble() ) );
+            light.tick( Math.min( batch, rays - i ) );
         }
+        TraceContext context = traceContext.get();
+        SplatStage stage = splatStage;
+        // Through a splat stage the photons are only counted once their segments are drawn, so no image is normalized
+        // by photons whose light is still queued.
+        if ( stage != null )
+            stage.count( context.queuesFor( stage ), rays );
+        else
+            context.rays += rays;
+    }
+
+    // Photons emitted per light pick. Batches are kept at least a packet long so packets stay full.
+    int getEmissionBatch() {
+        return Math.max( batchSize, packetSize );
     }
 
+    // Also waits for the splat stage to draw what the emitters queued, so what is read after this is complete.
     public void pauseEmitters() {
         for ( int p = 0; p < CPU_CORES; p++ ) {
             constantPhotonEmitter[p].pauseEmitter();
         }
+        SplatStage stage = splatStage;
+        if ( stage != null )
+            stage.flush();
     }
 
     public void resumeEmitters() {
-        for ( int p = 0; p < CPU_CORES; p++ ) {
+        for ( int p = 0; p < tracerThreads; p++ ) {
             constantPhotonEmitter[p].resumeEmitter();
         }
     }
 
     public void render( Graphics2D g ) throws InterruptedException {
-        convertedPixels = new int[width * height * COLOR_DEPTH];
+        if ( worldImage == null )
+            throw new IllegalStateException( "This world was made without a window, stream its light instead" );
+        if ( useDirectLighting )
+            updateDirectLighting();
+        // Every pixel is written again, so the array is reused from frame to frame.
         es.invokeAll( renderers );
         WritableRaster imageRaster = worldImage.getRaster();
         imageRaster.setPixels( 0, 0, width, height, convertedPixels );
@@ -119,6 +449,80 @@ public class PhotonWorld {
         g2.dispose();
     }
 
+    // Brings the direct light up to date. A geometry change recomputes every light, otherwise only the lights that changed
+    // are redone: one that moved has what it added before taken out and what it adds now put in, one that only changed
+    // color or power has the difference added in one pass.
+    private void updateDirectLighting() throws InterruptedException {
+        ArrayList<OmnidirectionalLightSource> lights = new ArrayList<OmnidirectionalLightSource>();
+        for ( LightSource light : lightSources ) {
+            if ( light instanceof OmnidirectionalLightSource )
+                lights.add( (OmnidirectionalLightSource) light );
+        }
+        double[] state = new double[6 * lights.size()];
+        for ( int k = 0; k < lights.size(); k++ ) {
+            OmnidirectionalLightSource light = lights.get( k );
+            state[6 * k] = light.getPosition().getX();
+            state[6 * k + 1] = light.getPosition().getY();
+            state[6 * k + 2] = light.getColor().getRed();
+            state[6 * k + 3] = light.getColor().getGreen();
+            state[6 * k + 4] = light.getColor().getBlue();
+            state[6 * k + 5] = light.getPower();
+        }
+        long version = sceneVersion;
+        double[] direct = directPixelInfo;
+        double[] previous = directLights;
+        if ( direct == null || directVersion != version ) {
+            direct = new double[width * height * COLOR_DEPTH];
+            previous = new double[0];
+        }
+        int count = Math.max( state.length, previous.length ) / 6;
+        for ( int k = 0; k < count; k++ ) {
+            boolean was = 6 * k < previous.length, is = 6 * k < state.length;
+            double[] before = was ? directScale( previous, k ) : null;
+            double[] after = is ? directScale( state, k ) : null;
+            // The light's own first hits, if it has swept them, answer most of its visibility rays.
+            AngularHitCache cache = is ? lights.get( k ).getFirstHits() : null;
+            Accelerator visibility = (cache != null) ? cache : accelerator;
+            if ( was && is && previous[6 * k] == state[6 * k] && previous[6 * k + 1] == state[6 * k + 1] ) {
+                if ( Arrays.equals( before, after ) )
+                    continue;
+                for ( int c = 0; c < 4; c++ ) {
+                    after[c] -= before[c];
+                }
+                addDirectLight( direct, state, k, after, visibility );
+                continue;
+            }
+            if ( was ) {
+                for ( int c = 0; c < 4; c++ ) {
+                    before[c] = -before[c];
+                }
+                addDirectLight( direct, previous, k, before, accelerator );
+            }
+            if ( is )
+                addDirectLight( direct, state, k, after, visibility );
+        }
+        directPixelInfo = direct;
+        directVersion = version;
+        directLights = state;
+    }
+
+    // The color times the power of the light whose state starts at state[6 * k], with the power alone as coverage.
+    private static double[] directScale( double[] state, int k ) {
+        double power = state[6 * k + 5];
+        return new double[]{ state[6 * k + 2] * power, state[6 * k + 3] * power, state[6 * k + 4] * power, power };
+    }
+
+    // Adds the direct light from the position in state[6 * k], scaled per channel, to direct.
+    private void addDirectLight( double[] direct, double[] state, int k, double[] scale, Accelerator visibility )
+            throws InterruptedException {
+        ArrayList<Callable<Integer>> passes = new ArrayList<Callable<Integer>>();
+        for ( int p = 0; p < CPU_CORES; p++ ) {
+            passes.add( new DirectLightingPass( direct, width, p * height / CPU_CORES, (p + 1) * height / CPU_CORES,
+                    visibility, curves, state[6 * k], state[6 * k + 1], scale ) );
+        }
+        es.invokeAll( passes );
+    }
+
     public double[] smartScreen( double[] src ) {
         if ( src[0] == 0 && src[1] == 0 && src[2] == 0 )
             return new double[]{ 0, 0, 0, src[3] };
@@ -127,159 +531,241 @@ public class PhotonWorld {
     }
 
     public void resolveRay( Vec startPoint, Vec direction, Color color ) {
-        Line prevLineIntersection = null;
-        double xi = startPoint.getX();
-        double yi = startPoint.getY();
-        int interactionType = -1;
-        double ra = direction.getAngle();
-        do {
-            if ( interactionType == 0 ) {
-                ra = 2 * Math.PI * ThreadLocalRandom.current().nextDouble();
-            } else if ( interactionType == 1 ) {
-                Vec normal = prevLineIntersection.getNormal();
-                Vec rVec = Vec.createVectorGeometrically( ra, 1 );
-                double angleBetween = rVec.angleBetween( normal );
-                double cross = rVec.cross( normal );
-                ra = normal.opposite().getAngle() + Util.sgn( cross ) * angleBetween;
+        resolveRay( startPoint.getX(), startPoint.getY(), direction.getX(), direction.getY(), color );
+    }
+
+    // Traces one photon from (xi, yi) in the direction (dx, dy), which does not need to be normalized.
+    public void resolveRay( double xi, double yi, double dx, double dy, Color color ) {
+        resolveRay( null, xi, yi, dx, dy, color );
+    }
+
+    // Same as above, but looks the first hit up in firstHits when it was swept around (xi, yi).
+    public void resolveRay( AngularHitCache firstHits, double xi, double yi, double dx, double dy, Color color ) {
+        resolveRay( firstHits, false, xi, yi, dx, dy, color );
+    }
+
+    // Same as above, but leaves the first segment out of the image when indirectOnly is set, for lights whose direct
+    // light is computed analytically instead.
+    public void resolveRay( AngularHitCache firstHits, boolean indirectOnly, double xi, double yi, double dx, double dy, Color color ) {
+        double length = Math.sqrt( dx * dx + dy * dy );
+        dx /= length;
+        dy /= length;
+        TraceContext context = traceContext.get();
+        RayQuery query = context.query;
+        query.reset( xi, yi, dx, dy, -1 );
+        if ( firstHits != null )
+            firstHits.closestHit( query );
+        else
+            accelerator.closestHit( query );
+        followPath( xi, yi, dx, dy, query.getT(), query.getIndex(), color, 1, indirectOnly, context );
+    }
+
+    // Starts a new photon path on this thread and returns the sampler it draws from. Light sources take their emission
+    // numbers from it before calling resolveRay, which keeps drawing from the same path for the bounces.
+    public Sampler beginPath() {
+        Sampler sampler = traceContext.get().sampler;
+        sampler.startPath( useQuasiRandom );
+        return sampler;
+    }
+
+    // Clears and returns this thread's photon batch, for a light to fill.
+    public PhotonBatch beginBatch() {
+        PhotonBatch batch = traceContext.get().batch;
+        batch.reset();
+        return batch;
+    }
+
+    // Traces every photon of a batch a light filled. Runs of photons leaving the same point go through the accelerator
+    // together as packets, unless the batch carries first hits to look them up in.
+    public void traceBatch( PhotonBatch batch, Color color ) {
+        TraceContext context = traceContext.get();
+        RayQuery query = context.query;
+        RayPacket packet = context.packet;
+        Sampler sampler = context.sampler;
+        AngularHitCache firstHits = batch.getFirstHits();
+        boolean indirectOnly = batch.isIndirectOnly();
+        int size = batch.size();
+        int i = 0;
+        while ( i < size ) {
+            double x = batch.getX( i );
+            double y = batch.getY( i );
+            int end = i + 1;
+            if ( packetSize > 1 && firstHits == null ) {
+                while ( end < size && end - i < packetSize && batch.getX( end ) == x && batch.getY( end ) == y ) {
+                    end++;
+                }
             }
-            double dx = Math.cos( ra );
-            double dy = Math.sin( ra );
-            double closestT = Double.POSITIVE_INFINITY;
-            Line closestLine = null;
-            double sdx = xi + dx;
-            double sdy = yi + dy;
-            double rA = sdy - yi;
-            double rB = xi - sdx;
-            double rC = rA * xi + rB * yi;
-            for ( Line lin : lineList ) {
-                if ( prevLineIntersection == null || lin != prevLineIntersection ) {
-                    double lx1 = lin.getP1().getX();
-                    double ly1 = lin.getP1().getY();
-                    double lx2 = lin.getP2().getX();
-                    double ly2 = lin.getP2().getY();
-
-                    double A = ly2 - ly1;
-                    double B = lx1 - lx2;
-                    double C = A * lx1 + B * ly1;
-                    boolean firstCheck = (rA * lx1 + rB * ly1 > rC) != (rA * lx2 + rB * ly2 > rC) || (rA * lx1 + rB * ly1 == rC) != (rA * lx2 + rB * ly2 == rC);
-                    if ( firstCheck ) { // intersects, determine at which point.
-                        double t = (C - A * xi - B * yi) / (A * dx + B * dy);
-                        if ( t >= 0 ) {
-                            if ( t < closestT ) {
-                                closestT = t;
-                                closestLine = lin;
-                            }
-                        }
-                    }
+            if ( end - i > 1 ) {
+                packet.reset( x, y );
+                for ( int k = i; k < end; k++ ) {
+                    packet.add( batch.getDx( k ), batch.getDy( k ) );
+                }
+                accelerator.closestHitPacket( packet );
+                for ( int k = i; k < end; k++ ) {
+                    sampler.resumePath( useQuasiRandom, batch.getPath( k ), batch.getDimension( k ) );
+                    batch.setContribution( k, followPath( x, y, batch.getDx( k ), batch.getDy( k ), packet.getT( k - i ),
+                            packet.getIndex( k - i ), color, batch.getWeight( k ), indirectOnly, context ) );
+                }
+            } else {
+                query.reset( x, y, batch.getDx( i ), batch.getDy( i ), -1 );
+                if ( firstHits != null )
+                    firstHits.closestHit( query );
+                else
+                    accelerator.closestHit( query );
+                sampler.resumePath( useQuasiRandom, batch.getPath( i ), batch.getDimension( i ) );
+                batch.setContribution( i, followPath( x, y, batch.getDx( i ), batch.getDy( i ), query.getT(), query.getIndex(),
+                        color, batch.getWeight( i ), indirectOnly, context ) );
+            }
+            i = end;
+        }
+    }
+
+    // Clears and returns this thread's packet, ready for directions leaving (x, y) to be added to it.
+    public RayPacket beginPacket( double x, double y ) {
+        RayPacket packet = traceContext.get().packet;
+        packet.reset( x, y );
+        return packet;
+    }
+
+    // Traces the first segment of every photon in the packet together, then lets each one bounce on its own.
+    public void resolvePacket( RayPacket packet, Color color ) {
+        resolvePacket( packet, color, false );
+    }
+
+    // Same as above, but leaves every photon's first segment out of the image when indirectOnly is set.
+    public void resolvePacket( RayPacket packet, Color color, boolean indirectOnly ) {
+        accelerator.closestHitPacket( packet );
+        TraceContext context = traceContext.get();
+        for ( int i = 0; i < packet.size(); i++ ) {
+            // Whatever the light drew its directions from, each photon bounces along a path of its own.
+            context.sampler.endPath();
+            followPath( packet.getX(), packet.getY(), packet.getDx( i ), packet.getDy( i ), packet.getT( i ), packet.getIndex( i ), color, 1, indirectOnly, context );
+        }
+    }
+
+    // Splats the segment from (xi, yi) to its hit on closestLine, or on a curve in front of it, and keeps bouncing until
+    // the photon is absorbed, runs out of depth or loses at Russian roulette. Survivors of the roulette carry
+    // proportionally more energy so the image stays unbiased. With indirectOnly the first segment is traced but not splat.
+    // Returns how much the path added to the image, as the weighted length it splat.
+    private double followPath( double xi, double yi, double dx, double dy, double closestT, int closestLine, Color color,
+                               double weight, boolean indirectOnly, TraceContext context ) {
+        PackedLines lines = geometry;
+        Curve[] curves = this.curves;
+        RayQuery query = context.query;
+        double[] curveNormal = context.curveNormal;
+        LineRasterizer rasterizer = context.rasterizer;
+        SplatStage stage = splatStage;
+        SplatQueue[] queues = (stage != null) ? context.queuesFor( stage ) : null;
+        double red = color.getRed(), green = color.getGreen(), blue = color.getBlue();
+        // Continues the path the light started with beginPath, if it did.
+        Sampler sampler = context.sampler;
+        if ( !sampler.isInPath() )
+            sampler.startPath( useQuasiRandom );
+        double contribution = 0;
+        int depth = 0;
+        while ( true ) {
+            // Curves are few, so each one is solved directly rather than going through the accelerator.
+            Curve closestCurve = null;
+            for ( Curve curve : curves ) {
+                double t = curve.intersect( xi, yi, dx, dy, closestT, curveNormal );
+                if ( t < closestT ) {
+                    closestT = t;
+                    closestCurve = curve;
                 }
             }
-            prevLineIntersection = closestLine;
             double xf = xi + dx * closestT;
             double yf = yi + dy * closestT;
-            addRay( xi, yi, xf, yf, color );
+            if ( depth > 0 || !indirectOnly ) {
+                if ( queues != null )
+                    stage.splat( queues, xi, yi, xf, yf, red, green, blue, weight );
+                else
+                    rasterizer.draw( xi, yi, xf, yf, red, green, blue, weight );
+                contribution += weight * closestT;
+            }
             xi = xf;
             yi = yf;
-            double random = ThreadLocalRandom.current().nextDouble();
-            if ( random < closestLine.getDiffuse() ) {
-                interactionType = 0;
+            depth++;
+            double diffuse, reflect, transmit, nx, ny;
+            int ignore;
+            if ( closestCurve != null ) {
+                diffuse = closestCurve.getDiffuse();
+                reflect = closestCurve.getReflect();
+                transmit = closestCurve.getTransmit();
+                nx = curveNormal[0];
+                ny = curveNormal[1];
+                ignore = -1;
             } else {
-                random -= closestLine.getDiffuse();
-                if ( random < closestLine.getReflect() ) {
-                    interactionType = 1;
+                diffuse = lines.getDiffuse( closestLine );
+                reflect = lines.getReflect( closestLine );
+                transmit = lines.getTransmit( closestLine );
+                nx = lines.getNormalX( closestLine );
+                ny = lines.getNormalY( closestLine );
+                ignore = closestLine;
+            }
+            double random = sampler.next();
+            if ( random < diffuse ) {
+                // Lambertian bounce back into the side the photon came from. In 2D the cosine-weighted angle from the
+                // normal has sin(theta) uniform on [-1, 1], so no trig is needed.
+                if ( dx * nx + dy * ny > 0 ) {
+                    nx = -nx;
+                    ny = -ny;
+                }
+                double sin = 2 * sampler.next() - 1;
+                double cos = Math.sqrt( 1 - sin * sin );
+                dx = cos * nx - sin * ny;
+                dy = cos * ny + sin * nx;
+            } else {
+                random -= diffuse;
+                if ( random < reflect ) {
+                    double dot = 2 * (dx * nx + dy * ny);
+                    dx -= dot * nx;
+                    dy -= dot * ny;
                 } else {
-                    random -= closestLine.getReflect();
-                    if ( random < closestLine.getTransmit() ) {
-                        interactionType = 2;
-                    } else {
-                        interactionType = 3;
-                    }
+                    random -= reflect;
+                    if ( random >= transmit )
+                        break;
                 }
             }
-        } while ( interactionType != 3 );
-    }
-
-    private void addRay( double x0, double y0, double x1, double y1, Color c ) {
-        boolean steep = Math.abs( y1 - y0 ) >= Math.abs( x1 - x0 );
-        double t;
-
-        if ( steep ) {
-            t = y0;
-            y0 = x0;
-            x0 = t;
-            t = y1;
-            y1 = x1;
-            x1 = t;
-        }
-        if ( x0 > x1 ) {
-            t = x1;
-            x1 = x0;
-            x0 = t;
-            t = y1;
-            y1 = y0;
-            y0 = t;
-        }
-        double dx = x1 - x0;
-        double dy = y1 - y0;
-        double br = 0.5 * Math.sqrt( dx * dx + dy * dy ) / dx;
-        double gradient = dy / dx;
-
-        double x05 = x0 + 0.5f;
-        int xend = (int) Math.floor( x05 );
-        double yend = y0 + gradient * (xend - x0);
-        double xgap = br * (1 - (x05 - xend));
-        double xpxl1 = xend;
-        double ypxl1 = Math.floor( yend );
-        if ( steep ) {
-            plotRay( (int) ypxl1, (int) xpxl1, (1 - (yend - ypxl1)) * xgap, c );
-            plotRay( (int) ypxl1 + 1, (int) xpxl1, (yend - ypxl1) * xgap, c );
-        } else {
-            plotRay( (int) xpxl1, (int) ypxl1, (1 - (yend - ypxl1)) * xgap, c );
-            plotRay( (int) xpxl1, (int) ypxl1 + 1, (yend - ypxl1) * xgap, c );
-        }
-        double intery = yend + gradient;
-
-        double x15 = x1 + 0.5f;
-        xend = (int) Math.floor( x15 );
-        yend = y1 + gradient * (xend - x1);
-        xgap = br * (x15 - xend);
-        double xpxl2 = xend;
-        double ypxl2 = Math.floor( yend );
-        if ( steep ) {
-            plotRay( (int) ypxl2, (int) xpxl2, (1 - (yend - ypxl2)) * xgap, c );
-            plotRay( (int) ypxl2 + 1, (int) xpxl2, (yend - ypxl2) * xgap, c );
-        } else {
-            plotRay( (int) xpxl2, (int) ypxl2, (1 - (yend - ypxl2)) * xgap, c );
-            plotRay( (int) xpxl2, (int) ypxl2 + 1, (yend - ypxl2) * xgap, c );
-        }
-        int fintery;
-        if ( steep ) {
-            for ( double x = xpxl1 + 1; x <= xpxl2 - 1; x++ ) {
-                fintery = (int) Math.floor( intery );
-                plotRay( fintery, (int) x, br * (1 - (intery - fintery)), c );
-                plotRay( fintery + 1, (int) x, br * (intery - fintery), c );
-                intery = intery + gradient;
-            }
-        } else {
-            for ( double x = xpxl1 + 1; x <= xpxl2 - 1; x++ ) {
-                fintery = (int) Math.floor( intery );
-                plotRay( (int) x, fintery, br * (1 - (intery - fintery)), c );
-                plotRay( (int) x, fintery + 1, br * (intery - fintery), c );
-                intery = intery + gradient;
+            if ( depth >= maxPathDepth )
+                break;
+            if ( depth >= rouletteDepth ) {
+                if ( ThreadLocalRandom.current().nextDouble() >= rouletteSurvival )
+                    break;
+                weight /= rouletteSurvival;
             }
+            query.reset( xi, yi, dx, dy, ignore );
+            accelerator.closestHit( query );
+            closestT = query.getT();
+            closestLine = query.getIndex();
         }
+        context.pathLengths[Math.min( depth, HISTOGRAM_BINS - 1 )]++;
+        sampler.endPath();
+        return contribution;
     }
 
-    private void plotRay( int x, int y, double c, Color o ) {
-        if ( x >= 0 && x < 1000 && y >= 0 && y < 600 ) {
-            rawPixelInfo[(y * 1000 * COLOR_DEPTH) + (x * COLOR_DEPTH) + 0] += (c * o.getRed());
-            rawPixelInfo[(y * 1000 * COLOR_DEPTH) + (x * COLOR_DEPTH) + 1] += (c * o.getGreen());
-            rawPixelInfo[(y * 1000 * COLOR_DEPTH) + (x * COLOR_DEPTH) + 2] += (c * o.getBlue());
-            rawPixelInfo[(y * 1000 * COLOR_DEPTH) + (x * COLOR_DEPTH) + 3] += (c);
+    // Photons emitted since the last clear, counted per thread so that no count is lost to a race.
+    public long getGlobalRayCount() {
+        long rays = 0;
+        for ( TraceContext context : traceContexts() ) {
+            rays += context.rays;
         }
+        SplatStage stage = splatStage;
+        if ( stage != null )
+            rays += stage.getRayCount();
+        return rays;
     }
 
-    public long getGlobalRayCount() {
-        return globalRayCount;
+    // The photons the light on row y is the sum of. Only differs from the global count while a splat stage has some of
+    // the rows' segments still queued.
+    public long getRayCount( int y ) {
+        SplatStage stage = splatStage;
+        if ( stage == null )
+            return getGlobalRayCount();
+        long rays = stage.getRayCount( y );
+        for ( TraceContext context : traceContexts() ) {
+            rays += context.rays;
+        }
+        return rays;
     }
 
     public int getWidth() {
@@ -305,8 +791,94 @@ public class PhotonWorld {
         }
     }
 
+    // Sums the threads' buffers before returning them, so the result is current even without a render.
     public double[] getRawPixelInfo() {
-        return rawPixelInfo;
+        if ( rawPixelInfo == null ) {
+            if ( !fitsInArray() )
+                throw new IllegalStateException( "A " + width + "x" + height + " canvas is too large for one array, stream "
+                        + "its light instead" );
+            rawPixelInfo = new double[width * height * COLOR_DEPTH];
+        }
+        return reduceRows( 0, height );
+    }
+
+    // Whether every channel of the canvas can be indexed in one array.
+    private boolean fitsInArray() {
+        return (long) width * height * COLOR_DEPTH <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Sums the buffers one row at a time and hands each row to the sink, top to bottom, in the units the renderer
+     * multiplies by the exposure, direct light included. Nothing the size of the canvas is allocated, so this works on a
+     * canvas of any size. Direct lighting does keep the canvas in one array, so it can only be turned on where that
+     * fits. Pause the emitters first for an image of one moment.
+     */
+    public void streamLight( RowSink sink ) throws IOException, InterruptedException {
+        if ( useDirectLighting )
+            updateDirectLighting();
+        double[] direct = getDirectPixelInfo();
+        ArrayList<AccumulationBuffer> buffers = accumulationBuffers();
+        double[] row = new double[width * COLOR_DEPTH];
+        for ( int y = 0; y < height; y++ ) {
+            long rays = getRayCount( y );
+            double scale = (rays == 0) ? 0 : getTotalPower() / rays;
+            Arrays.fill( row, 0 );
+            for ( AccumulationBuffer buffer : buffers ) {
+                buffer.addRowTo( y, row );
+            }
+            for ( int i = 0; i < row.length; i++ ) {
+                row[i] *= scale;
+                if ( direct != null )
+                    row[i] += direct[y * width * COLOR_DEPTH + i];
+            }
+            sink.row( y, row );
+        }
+    }
+
+    /**
+     * Writes the light on the canvas, times the exposure and without clamping, to a Portable Float Map: red, green and
+     * blue as 32 bit floats, rows from the bottom up. The rows go from the buffers straight into the file, so even a
+     * canvas too large for an array can be exported.
+     */
+    public void exportLight( File file ) throws IOException, InterruptedException {
+        RandomAccessFile access = new RandomAccessFile( file, "rw" );
+        try {
+            final FileChannel channel = access.getChannel();
+            channel.truncate( 0 );
+            // A negative scale marks the floats as little endian.
+            final byte[] header = ("PF\n" + width + " " + height + "\n-1.0\n").getBytes( StandardCharsets.US_ASCII );
+            channel.write( ByteBuffer.wrap( header ), 0 );
+            final ByteBuffer pixels = ByteBuffer.allocate( width * 3 * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+            final double exposure = this.exposure;
+            streamLight( new RowSink() {
+                @Override
+                public void row( int y, double[] row ) throws IOException {
+                    pixels.clear();
+                    for ( int x = 0; x < width; x++ ) {
+                        pixels.putFloat( (float) (row[x * COLOR_DEPTH] * exposure) );
+                        pixels.putFloat( (float) (row[x * COLOR_DEPTH + 1] * exposure) );
+                        pixels.putFloat( (float) (row[x * COLOR_DEPTH + 2] * exposure) );
+                    }
+                    pixels.flip();
+                    long position = header.length + (long) (height - 1 - y) * pixels.capacity();
+                    while ( pixels.hasRemaining() ) {
+                        position += channel.write( pixels, position );
+                    }
+                }
+            } );
+        } finally {
+            access.close();
+        }
+    }
+
+    // The direct light added on top of the photons, or null when it is not being computed.
+    public double[] getDirectPixelInfo() {
+        return useDirectLighting ? directPixelInfo : null;
+    }
+
+    // The power every photon's energy is a share of.
+    public double getTotalPower() {
+        return lightTable.getTotal();
     }
 
     public ArrayList<LightSource> getLightSources() {
@@ -320,6 +892,348 @@ public class PhotonWorld {
     public int[] getConvertedPixels() {
         return convertedPixels;
     }
+
+    // Number of photon paths that ended after each number of segments, with everything longer in the last bin.
+    public long[] getPathLengthHistogram() {
+        long[] histogram = new long[HISTOGRAM_BINS];
+        synchronized ( traceContexts ) {
+            for ( TraceContext context : traceContexts ) {
+                for ( int i = 0; i < HISTOGRAM_BINS; i++ ) {
+                    histogram[i] += context.pathLengths[i];
+                }
+            }
+        }
+        return histogram;
+    }
+
+    public int getMaxPathDepth() {
+        return maxPathDepth;
+    }
+
+    // Hard cap on segments per photon. Cutting paths off loses their remaining energy, but bounds how long a photon
+    // bouncing between mirrors can keep an emitter from pausing.
+    public void setMaxPathDepth( int maxPathDepth ) {
+        this.maxPathDepth = Math.max( 1, maxPathDepth );
+    }
+
+    public int getRouletteDepth() {
+        return rouletteDepth;
+    }
+
+    public void setRouletteDepth( int rouletteDepth ) {
+        this.rouletteDepth = Math.max( 1, rouletteDepth );
+    }
+
+    public double getRouletteSurvival() {
+        return rouletteSurvival;
+    }
+
+    // Chance a photon survives each bounce past the roulette depth. 1 turns Russian roulette off.
+    public void setRouletteSurvival( double rouletteSurvival ) {
+        this.rouletteSurvival = Math.max( 0.01, Math.min( 1, rouletteSurvival ) );
+    }
+
+    /**
+     * Starts sweeping the first hits around a fixed point for the current scene on a background thread. The emitters
+     * keep tracing without the cache until it is done, and a sweep an edit overtakes comes back stale or null.
+     */
+    public Future<AngularHitCache> sweepFirstHits( final double x, final double y ) {
+        final PackedLines lines = geometry;
+        final Accelerator base = accelerator;
+        final long version = sceneVersion;
+        return sweeper.submit( new Callable<AngularHitCache>() {
+            @Override
+            public AngularHitCache call() {
+                try {
+                    return new AngularHitCache( lines, base, x, y, version );
+                } catch ( RuntimeException e ) {
+                    // Lines edited in place under the sweep can throw it off, but its result was stale anyway.
+                    if ( sceneVersion != version )
+                        return null;
+                    throw e;
+                }
+            }
+        } );
+    }
+
+    /**
+     * Returns the portals visible from a light at (x, y) for the current scene, finding them again only when the given
+     * sampler is missing, was built for another point, or predates the last change to the scene or its materials.
+     */
+    public PortalSampler getPortalSampler( PortalSampler sampler, double x, double y ) {
+        long version = getMaterialVersion();
+        if ( sampler != null && sampler.isCurrent( version, x, y ) )
+            return sampler;
+        return new PortalSampler( geometry, portalIndices, accelerator, x, y, version );
+    }
+
+    // Bumped every time the geometry or the accelerator is rebuilt, or a line moves.
+    public long getSceneVersion() {
+        return sceneVersion;
+    }
+
+    // Changes whenever the scene version does, and also when only the material of a line or its portal mark changes.
+    public long getMaterialVersion() {
+        return sceneVersion + materialVersion;
+    }
+
+    public boolean isUsingFirstHitCache() {
+        return useFirstHitCache;
+    }
+
+    // Lets omnidirectional lights that have emitted enough photons since the last edit sweep their first hits once and
+    // look them up instead of tracing them. Worth it for lights that stay put in scenes that are rarely edited.
+    public void setUseFirstHitCache( boolean useFirstHitCache ) {
+        pauseEmitters();
+        this.useFirstHitCache = useFirstHitCache;
+        resumeEmitters();
+    }
+
+    public boolean isUsingTiledAccumulation() {
+        return accumulationType == AccumulationType.TILED;
+    }
+
+    // Lets each thread allocate its buffer one tile at a time as its photons reach them, instead of all at once.
+    public void setTiledAccumulation( boolean tiledAccumulation ) {
+        setAccumulationType( tiledAccumulation ? AccumulationType.TILED : AccumulationType.DENSE );
+    }
+
+    public AccumulationType getAccumulationType() {
+        return accumulationType;
+    }
+
+    // Changes the buffers photons are added to. FIXED_POINT keeps one copy of the canvas instead of one per thread,
+    // for canvases where those copies would not fit, and renders the same image whatever the threads' timing. FLOAT
+    // and SHARED_EXPONENT keep a copy per thread in a half or a quarter of the memory, which also speeds up splatting.
+    // OFF_HEAP keeps one copy out of the Java heap, so it adds nothing to garbage collection and can be larger than an
+    // array. The renderer reads every kind the same way.
+    public void setAccumulationType( AccumulationType accumulationType ) {
+        // Checked before anything is paused or cleared, as each thread only allocates its buffer later.
+        if ( !accumulationType.canHold( width, height ) )
+            throw new IllegalArgumentException( "A " + width + "x" + height + " canvas is too large for "
+                    + accumulationType + " accumulation" );
+        setAccumulation( accumulationType, accumulationType.isShared() ? accumulationType.create( width, height ) : null );
+    }
+
+    /**
+     * Switches to OFF_HEAP accumulation kept in a file mapped into memory, for canvases larger than memory. The file is
+     * cleared, since the photon count any light already in it belongs to is not kept.
+     *
+     * @param file The file to keep the light in, created or grown to fit the canvas.
+     */
+    public void setAccumulationType( AccumulationType accumulationType, File file ) throws IOException {
+        if ( accumulationType != AccumulationType.OFF_HEAP )
+            throw new IllegalArgumentException( "Only off-heap accumulation can be kept in a file, not " + accumulationType );
+        OffHeapAccumulationBuffer buffer = new OffHeapAccumulationBuffer( width, height, file );
+        buffer.clear();
+        setAccumulation( accumulationType, buffer );
+    }
+
+    private void setAccumulation( AccumulationType accumulationType, AccumulationBuffer shared ) {
+        pauseEmitters();
+        clearPhotons();
+        this.accumulationType = accumulationType;
+        sharedAccumulation = shared;
+        allocateAccumulation( getSplatThreads() );
+        resumeEmitters();
+    }
+
+    // Gives the splat stage, or every thread when there is none, an empty buffer of the accumulation type. Must only be
+    // called while the emitters are paused.
+    private void allocateAccumulation( int splatThreads ) {
+        if ( splatStage != null )
+            splatStage.shutdown();
+        if ( splatThreads > 0 ) {
+            AccumulationBuffer buffer = accumulationType.isShared() ? sharedAccumulation
+                    : accumulationType.create( width, height );
+            splatStage = new SplatStage( buffer, width, height, splatThreads );
+        } else {
+            splatStage = null;
+        }
+        for ( TraceContext context : traceContexts() ) {
+            context.setAccumulation( newAccumulationBuffer(), width, height );
+        }
+    }
+
+    public int getSplatThreads() {
+        SplatStage stage = splatStage;
+        return (stage != null) ? stage.getRasterizerCount() : 0;
+    }
+
+    // Hands drawing the photon paths to that many rasterizer threads, each owning a band of rows, so the tracers only
+    // trace. 0 lets every tracer draw into its own buffer again. Together with setTracerThreads this sets the ratio of
+    // tracing to drawing threads.
+    public void setSplatThreads( int splatThreads ) {
+        pauseEmitters();
+        clearPhotons();
+        allocateAccumulation( splatThreads );
+        resumeEmitters();
+    }
+
+    public int getTracerThreads() {
+        return tracerThreads;
+    }
+
+    // How many of the emitter threads trace photons, from 1 to the number of cores.
+    public void setTracerThreads( int tracerThreads ) {
+        pauseEmitters();
+        this.tracerThreads = Math.max( 1, Math.min( CPU_CORES, tracerThreads ) );
+        resumeEmitters();
+    }
+
+    // Segments the tracers have queued that the rasterizers have not drawn yet, 0 without a splat stage.
+    public long getSplatQueueDepth() {
+        SplatStage stage = splatStage;
+        return (stage != null) ? stage.getQueueDepth() : 0;
+    }
+
+    // Time tracers have spent waiting on full splat queues, in nanoseconds summed over threads.
+    public long getSplatStallNanos() {
+        SplatStage stage = splatStage;
+        return (stage != null) ? stage.getStallNanos() : 0;
+    }
+
+    // Time rasterizers have spent waiting for segments, in nanoseconds summed over threads.
+    public long getSplatIdleNanos() {
+        SplatStage stage = splatStage;
+        return (stage != null) ? stage.getIdleNanos() : 0;
+    }
+
+    public boolean isUsingQuasiRandom() {
+        return useQuasiRandom;
+    }
+
+    // Draws emission directions and diffuse bounces from per-thread Halton sequences instead of independent numbers.
+    public void setUseQuasiRandom( boolean useQuasiRandom ) {
+        pauseEmitters();
+        clearPhotons();
+        this.useQuasiRandom = useQuasiRandom;
+        resumeEmitters();
+    }
+
+    public boolean isUsingEmissionGuiding() {
+        return useEmissionGuiding;
+    }
+
+    // Lets omnidirectional lights learn which directions light the image and emit more photons in them. Worth it when
+    // most of a light's photons are wasted, such as when it shines into a room through a narrow slit.
+    public void setUseEmissionGuiding( boolean useEmissionGuiding ) {
+        pauseEmitters();
+        clearPhotons();
+        this.useEmissionGuiding = useEmissionGuiding;
+        resumeEmitters();
+    }
+
+    public boolean isUsingDirectLighting() {
+        return useDirectLighting;
+    }
+
+    // Computes the light omnidirectional lights shine straight onto each pixel analytically, so their photons only
+    // need to carry what is scattered after the first bounce. The direct light is noise free from the first frame.
+    public void setUseDirectLighting( boolean useDirectLighting ) {
+        // The direct light is kept in one array, like rawPixelInfo.
+        if ( useDirectLighting && !fitsInArray() )
+            throw new IllegalStateException( "Direct lighting needs a canvas of under 2^31 channels, not " + width + "x"
+                    + height );
+        pauseEmitters();
+        clearPhotons();
+        this.useDirectLighting = useDirectLighting;
+        directPixelInfo = null;
+        resumeEmitters();
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    // Light sources that support it emit photons in packets of this size. 1 traces every photon on its own.
+    public void setPacketSize( int packetSize ) {
+        this.packetSize = Math.max( 1, Math.min( RayPacket.MAX_SIZE, packetSize ) );
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // Photons a light emits in a row each time it is picked. Small batches keep ticks, and so pauses, short and spread
+    // the lights evenly over the emitters, large ones let a light reuse what it looked up for the previous photon.
+    public void setBatchSize( int batchSize ) {
+        this.batchSize = Math.max( 1, batchSize );
+    }
+
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    // Lets the vector kernel, when it is available, test lines in single precision first.
+    public void setSinglePrecision( boolean singlePrecision ) {
+        pauseEmitters();
+        this.singlePrecision = singlePrecision;
+        kernel = IntersectionKernel.load( singlePrecision );
+        buildAccelerator();
+        resumeEmitters();
+    }
+
+    public AcceleratorType getAcceleratorType() {
+        return acceleratorType;
+    }
+
+    public boolean isUsingPotentiallyVisibleSet() {
+        return usePotentiallyVisibleSet;
+    }
+
+    // Precomputes, per line, which lines a photon bouncing off it could hit next. Worth it for static scenes with many
+    // walls. The lists are patched as lines are added, so only the affected lines are recomputed.
+    public void setUsePotentiallyVisibleSet( boolean usePotentiallyVisibleSet ) {
+        pauseEmitters();
+        this.usePotentiallyVisibleSet = usePotentiallyVisibleSet;
+        buildAccelerator();
+        resumeEmitters();
+    }
+
+    // Forces one accelerator, mostly so they can be compared against each other. AUTO picks one from the scene.
+    public void setAcceleratorType( AcceleratorType acceleratorType ) {
+        pauseEmitters();
+        this.acceleratorType = acceleratorType;
+        buildAccelerator();
+        resumeEmitters();
+    }
+}
+
+// Everything one thread needs to trace photons without allocating or synchronizing.
+class TraceContext {
+    // Null, as is the rasterizer, while a splat stage draws for every thread.
+    AccumulationBuffer accumulation;
+    LineRasterizer rasterizer;
+    long rays = 0;
+    final RayQuery query = new RayQuery();
+    final RayPacket packet = new RayPacket();
+    final long[] pathLengths = new long[PhotonWorld.HISTOGRAM_BINS];
+    final double[] curveNormal = new double[2];
+    final Sampler sampler = new Sampler( ThreadLocalRandom.current() );
+    final PhotonBatch batch = new PhotonBatch();
+
+    // The splat stage this thread last queued to, and its queues there.
+    private SplatStage stage;
+    private SplatQueue[] queues;
+
+    TraceContext( AccumulationBuffer accumulation, int width, int height ) {
+        setAccumulation( accumulation, width, height );
+    }
+
+    void setAccumulation( AccumulationBuffer accumulation, int width, int height ) {
+        this.accumulation = accumulation;
+        rasterizer = (accumulation != null) ? new LineRasterizer( accumulation, width, 0, height ) : null;
+    }
+
+    // Registers with the stage the first time this thread splats to it.
+    SplatQueue[] queuesFor( SplatStage stage ) {
+        if ( this.stage != stage ) {
+            queues = stage.register();
+            this.stage = stage;
+        }
+        return queues;
+    }
 }
 
 class PhotonEmitter implements Callable<Integer> {
@@ -354,50 +1268,78 @@ class ConstantPhotonEmitter extends Thread {
 
     public void run() {
         while ( true ) {
-
-            while ( !emitting ) {
-                try {
-                    Thread.sleep( 100 );
-                } catch ( InterruptedException e ) {
-                    e.printStackTrace();
+            synchronized ( this ) {
+                while ( !emitting ) {
+                    try {
+                        wait();
+                    } catch ( InterruptedException e ) {
+                        e.printStackTrace();
+                    }
+                }
+                busy = true;
+            }
+            try {
+                world.tick( world.getEmissionBatch() );
+            } finally {
+                // Even a tick that throws must not leave pauseEmitter waiting on this thread forever.
+                synchronized ( this ) {
+                    busy = false;
+                    notifyAll();
                 }
             }
-            busy = true;
-            world.tick( 1 );
-            busy = false;
         }
     }
 
-    public void pauseEmitter() {
+    // Returns once the emitter has finished its current tick, so the world can be edited safely. Waits instead of
+    // polling so that edits only take as long as the photons in flight.
+    public synchronized void pauseEmitter() {
         emitting = false;
-        while ( busy )
-            continue;
+        while ( busy ) {
+            try {
+                wait();
+            } catch ( InterruptedException e ) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    public void resumeEmitter() {
+    public synchronized void resumeEmitter() {
         emitting = true;
-        while ( !busy )
-            continue;
+        notifyAll();
     }
 }
 
 class Renderer implements Callable<Integer> {
     PhotonWorld world;
-    int start, pixels;
+    int fromRow, toRow;
 
-    public Renderer( PhotonWorld world, int start ) {
+    public Renderer( PhotonWorld world, int fromRow, int toRow ) {
         super();
-        this.start = start;
         this.world = world;
-        this.pixels = world.getWidth() * world.getHeight() * world.getCOLOR_DEPTH() / PhotonWorld.getCpuCores();
+        this.fromRow = fromRow;
+        this.toRow = toRow;
     }
 
     @Override
     public Integer call() throws Exception {
-        for ( int i = start; i < start + pixels; i += world.getCOLOR_DEPTH() ) {
+        double[] direct = world.getDirectPixelInfo();
+        // Counted before the sum, so no row is normalized by photons whose light came in after it was read.
+        long[] counts = new long[toRow - fromRow];
+        for ( int y = fromRow; y < toRow; y++ ) {
+            counts[y - fromRow] = world.getRayCount( y );
+        }
+        // Each renderer sums its own rows of the threads' buffers, so the reduction runs in parallel too.
+        double[] raw = world.reduceRows( fromRow, toRow );
+        int rowLength = world.getWidth() * world.getCOLOR_DEPTH();
+        int start = fromRow * rowLength;
+        int end = toRow * rowLength;
+        for ( int i = start; i < end; i += world.getCOLOR_DEPTH() ) {
+            long rays = counts[i / rowLength - fromRow];
             double[] comp = new double[world.getCOLOR_DEPTH()];
             for ( int l = 0; l < world.getCOLOR_DEPTH(); l++ ) {
-                comp[l] = world.getRawPixelInfo()[i + l] / world.getGlobalRayCount() * world.getExposure() * world.getLightSources().size();
+                comp[l] = (rays == 0) ? 0 : raw[i + l] / rays * world.getExposure() * world.getTotalPower();
+                if ( direct != null )
+                    comp[l] += direct[i + l] * world.getExposure();
                 if ( comp[l] > 1 ) comp[l] = 1;
                 else if ( comp[l] < 0 ) comp[l] = 0;
             }
@@ -409,4 +1351,76 @@ class Renderer implements Callable<Integer> {
         }
         return 0;
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Adds the light one omnidirectional light shines straight onto a band of rows, as much as its photons would deposit
+ * there on average per photon: a photon path crossing a pixel splats half its length into it, and the paths of one
+ * photon are spread over a circle of circumference 2 pi r, so a visible pixel gets 1 / (4 pi r), times the light's
+ * power. Each pixel averages four samples so shadow edges come out anti-aliased like the photons' lines.
+ */
+class DirectLightingPass implements Callable<Integer> {
+    // Keeps the pixel under the light finite.
+    private static final double MIN_DISTANCE = 0.5;
+    private final double[] direct;
+    private final int width, startRow, endRow;
+    private final Accelerator visibility;
+    private final Curve[] curves;
+    private final double x, y;
+    private final double[] scale;
+
+    /**
+     * @param scale What the red, green, blue and coverage of each pixel are scaled by: the light's color times its power
+     *              to add the light, negative to take it out, or the difference between two colors to change it.
+     */
+    DirectLightingPass( double[] direct, int width, int startRow, int endRow, Accelerator visibility,
+                        Curve[] curves, double x, double y, double[] scale ) {
+        this.direct = direct;
+        this.width = width;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.visibility = visibility;
+        this.curves = curves;
+        this.x = x;
+        this.y = y;
+        this.scale = scale;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        RayQuery query = new RayQuery();
+        double[] normal = new double[2];
+        for ( int py = startRow; py < endRow; py++ ) {
+            for ( int px = 0; px < width; px++ ) {
+                double sum = 0;
+                // Pixel (px, py) is centered on its integer coordinates, as in LineRasterizer.
+                for ( int s = 0; s < 4; s++ ) {
+                    double dx = px + ((s & 1) - 0.5) / 2 - x;
+                    double dy = py + ((s >> 1) - 0.5) / 2 - y;
+                    double r = Math.sqrt( dx * dx + dy * dy );
+                    if ( r == 0 )
+                        continue;
+                    dx /= r;
+                    dy /= r;
+                    query.reset( x, y, dx, dy, -1 );
+                    visibility.closestHit( query );
+                    double t = query.getT();
+                    for ( Curve curve : curves ) {
+                        t = Math.min( t, curve.intersect( x, y, dx, dy, t, normal ) );
+                    }
+                    if ( t >= r )
+                        sum += 1 / (4 * Math.PI * Math.max( r, MIN_DISTANCE ));
+                }
+                if ( sum == 0 )
+                    continue;
+                sum /= 4;
+                int i = (py * width + px) * 4;
+                direct[i] += sum * scale[0];
+                direct[i + 1] += sum * scale[1];
+                direct[i + 2] += sum * scale[2];
+                direct[i + 3] += sum * scale[3];
+            }
+        }
+        return 0;
+    }
+}
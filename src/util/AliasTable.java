@@ -0,0 +1,78 @@
+package util;
+
+/**
+ * Picks an index with probability proportional to its weight in constant time, using Vose's alias method: every slot
+ * holds its own index with some probability and one other index, its alias, the rest of the time.
+ */
+public class AliasTable {
+    private final double[] probability;
+    private final int[] alias;
+    private final double total;
+
+    /**
+     * @param weights The non-negative weight of every index. If they are all zero every index is equally likely.
+     */
+    public AliasTable( double[] weights ) {
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+        double sum = 0;
+        for ( double weight : weights ) {
+            sum += weight;
+        }
+        total = sum;
+        // Scaled so the average slot holds exactly 1. Slots below that are topped up from the ones above.
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0, largeCount = 0;
+        for ( int i = 0; i < n; i++ ) {
+            scaled[i] = (sum > 0) ? weights[i] * n / sum : 1;
+            if ( scaled[i] < 1 )
+                small[smallCount++] = i;
+            else
+                large[largeCount++] = i;
+        }
+        while ( smallCount > 0 && largeCount > 0 ) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] += scaled[less] - 1;
+            if ( scaled[more] < 1 )
+                small[smallCount++] = more;
+            else
+                large[largeCount++] = more;
+        }
+        // Whatever is left over is 1 up to rounding.
+        while ( largeCount > 0 ) {
+            int i = large[--largeCount];
+            probability[i] = 1;
+            alias[i] = i;
+        }
+        while ( smallCount > 0 ) {
+            int i = small[--smallCount];
+            probability[i] = 1;
+            alias[i] = i;
+        }
+    }
+
+    /**
+     * @param u A uniform number in [0, 1).
+     * @return An index, drawn with probability proportional to its weight.
+     */
+    public int sample( double u ) {
+        double x = u * probability.length;
+        int i = Math.min( (int) x, probability.length - 1 );
+        return (x - i < probability[i]) ? i : alias[i];
+    }
+
+    public int size() {
+        return probability.length;
+    }
+
+    // The sum of all weights.
+    public double getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,96 @@
+package util;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out the random numbers one photon path consumes, one dimension at a time. In quasi-random mode the first
+ * {@link #DIMENSIONS} numbers of each path are the next point of a Halton sequence instead, which covers the unit cube
+ * far more evenly than independent numbers, so the fans of light photons draw converge with less noise.
+ * <p>
+ * Every thread owns a sampler whose sequence starts at a random index and is shifted by a random amount in every
+ * dimension, so the threads sample different, decorrelated points while each stays low-discrepancy.
+ */
+public class Sampler {
+    // Bases of the Halton dimensions. Past the first few primes consecutive points line up, so paths fall back to
+    // independent numbers after this many.
+    private static final int[] PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53 };
+    public static final int DIMENSIONS = PRIMES.length;
+    private final double[] shift = new double[DIMENSIONS];
+    private long index;
+    private int dimension;
+    private boolean quasiRandom;
+    private boolean inPath = false;
+
+    public Sampler( Random random ) {
+        for ( int d = 0; d < DIMENSIONS; d++ ) {
+            shift[d] = random.nextDouble();
+        }
+        index = random.nextInt( 1 << 20 );
+    }
+
+    /**
+     * Moves on to the next point of the sequence.
+     *
+     * @param quasiRandom Whether this path draws from the Halton sequence or from independent numbers.
+     */
+    public void startPath( boolean quasiRandom ) {
+        this.quasiRandom = quasiRandom;
+        index++;
+        dimension = 0;
+        inPath = true;
+    }
+
+    /**
+     * Picks a path back up where it was left, for paths whose emission and tracing are done apart.
+     *
+     * @param index     The index the path had, from {@link #getIndex()}.
+     * @param dimension The dimensions it had already drawn, from {@link #getDimension()}.
+     */
+    public void resumePath( boolean quasiRandom, long index, int dimension ) {
+        this.quasiRandom = quasiRandom;
+        this.index = index;
+        this.dimension = dimension;
+        inPath = true;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public void endPath() {
+        inPath = false;
+    }
+
+    public boolean isInPath() {
+        return inPath;
+    }
+
+    /**
+     * @return The next number of the current path, in [0, 1).
+     */
+    public double next() {
+        if ( !quasiRandom || dimension >= DIMENSIONS )
+            return ThreadLocalRandom.current().nextDouble();
+        double value = radicalInverse( PRIMES[dimension], index ) + shift[dimension];
+        dimension++;
+        return (value >= 1) ? value - 1 : value;
+    }
+
+    // The digits of n in the given base, mirrored around the radix point.
+    private static double radicalInverse( int base, long n ) {
+        double inverse = 1.0 / base;
+        double scale = inverse;
+        double value = 0;
+        while ( n > 0 ) {
+            value += (n % base) * scale;
+            n /= base;
+            scale *= inverse;
+        }
+        return value;
+    }
+}